@@ -0,0 +1,251 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.benchmarks;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.CouchDbInstance;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.impl.StdCouchDbInstance;
+
+import com.couchbase.syncpoint.impl.SyncpointClientImpl;
+import com.couchbase.syncpoint.impl.SyncpointViews;
+import com.couchbase.syncpoint.model.SyncpointChannel;
+import com.couchbase.syncpoint.model.SyncpointInstallation;
+import com.couchbase.syncpoint.model.SyncpointModel;
+import com.couchbase.syncpoint.model.SyncpointSession;
+import com.couchbase.syncpoint.model.SyncpointSubscription;
+import com.couchbase.syncpoint.platform.Clock;
+import com.couchbase.syncpoint.platform.DatabaseServerFactory;
+import com.couchbase.syncpoint.platform.KeyValueStore;
+import com.couchbase.syncpoint.platform.Platform;
+import com.couchbase.syncpoint.platform.jvm.JvmPlatform;
+import com.couchbase.syncpoint.platform.jvm.PropertiesFileStore;
+
+/**
+ * An in-memory control database with a paired session, seeded with channels, subscriptions
+ * and installations the way the Syncpoint server would write them.
+ *
+ * Channel i is named "channel-i".  The first subscriptions channels each have subscription i,
+ * and the first installations of those have installation i, made by this session.
+ */
+public class ControlDatabaseFixture {
+
+    public static final String APP_ID = "benchmark";
+    public static final String OWNER_ID = "owner-benchmark";
+    public static final String UNPAIRED_OWNER_ID = "unpaired";
+
+    private static final int SEED_BATCH_SIZE = 1000;
+
+    private final InMemoryCouchServer httpClient = new InMemoryCouchServer();
+    private final KeyValueStore preferences = new PropertiesFileStore(null);
+    private final CouchDbInstance server;
+    private final CouchDbConnector controlDatabase;
+    private SyncpointSession session;
+
+    public ControlDatabaseFixture() {
+        // what SyncpointViews installs, as native map functions
+        httpClient.registerView(SyncpointViews.DESIGN_DOC_ID, SyncpointViews.BY_TYPE_OWNER_STATE, new InMemoryCouchServer.MapFunction() {
+
+            @Override
+            public void map(JsonNode doc, List<JsonNode> keys) {
+                if(doc.has("type")) {
+                    ArrayNode key = JsonNodeFactory.instance.arrayNode();
+                    key.add(doc.get("type"));
+                    key.add(field(doc, "owner_id"));
+                    key.add(field(doc, "state"));
+                    keys.add(key);
+                }
+            }
+        });
+        httpClient.registerView(SyncpointViews.DESIGN_DOC_ID, SyncpointViews.BY_TYPE_CHANNEL, new InMemoryCouchServer.MapFunction() {
+
+            @Override
+            public void map(JsonNode doc, List<JsonNode> keys) {
+                if(doc.has("type") && doc.has("channel_id")) {
+                    ArrayNode key = JsonNodeFactory.instance.arrayNode();
+                    key.add(doc.get("type"));
+                    key.add(doc.get("channel_id"));
+                    keys.add(key);
+                }
+            }
+        });
+        server = new StdCouchDbInstance(httpClient);
+        controlDatabase = server.createConnector(SyncpointClientImpl.LOCAL_CONTROL_DATABASE_NAME, true);
+        SyncpointViews.install(controlDatabase);
+    }
+
+    private static JsonNode field(JsonNode doc, String name) {
+        JsonNode value = doc.get(name);
+        return value != null ? value : JsonNodeFactory.instance.nullNode();
+    }
+
+    public InMemoryCouchServer getHttpClient() {
+        return httpClient;
+    }
+
+    public CouchDbInstance getServer() {
+        return server;
+    }
+
+    public CouchDbConnector getControlDatabase() {
+        return controlDatabase;
+    }
+
+    public KeyValueStore getPreferences() {
+        return preferences;
+    }
+
+    /**
+     * A headless platform whose local server is this fixture's.
+     */
+    public Platform getPlatform() {
+        return new JvmPlatform(preferences, new DatabaseServerFactory() {
+
+            @Override
+            public CouchDbInstance createLocalServer() {
+                return server;
+            }
+        }, Clock.SYSTEM);
+    }
+
+    public static URL getRemoteServerURL() {
+        try {
+            return new URL("http://syncpoint.invalid:5984/");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Makes the session, owned by OWNER_ID.  It is left short of "paired" so a client opened on
+     * the fixture doesn't start syncing the control database.
+     */
+    public SyncpointSession createSession() {
+        session = SyncpointSession.makeSessionInDatabase(preferences, server, controlDatabase, APP_ID, getRemoteServerURL());
+        session.setOwnerId(OWNER_ID);
+        session.setControlDatabase("control-benchmark");
+        session.update();
+        return session;
+    }
+
+    public SyncpointSession getSession() {
+        return session;
+    }
+
+    /**
+     * Seeds ready channels owned by the session's owner.
+     */
+    public void seedChannels(int channels, int subscriptions, int installations) {
+        seed(OWNER_ID, "ready", channels, subscriptions, installations);
+    }
+
+    /**
+     * Seeds the owner's ready channels, and the channels made on this device before pairing
+     * with their subscriptions and installations.  The first matching unpaired channels have
+     * the name of one of the owner's and get merged into it, the rest are moved over as they
+     * are.
+     */
+    public void seedUnpairedChannels(int channels, int subscriptions, int installations, int matching) {
+        seed(OWNER_ID, "ready", channels, 0, 0);
+        List<SyncpointModel> models = new ArrayList<SyncpointModel>();
+        for (int i = 0; i < channels; i++) {
+            String channelId = "unpaired-channel-" + i;
+            SyncpointChannel channel = new SyncpointChannel();
+            channel.setId(channelId);
+            channel.setType("channel");
+            channel.setName(i < matching ? "channel-" + i : "local-channel-" + i);
+            channel.setOwnerId(UNPAIRED_OWNER_ID);
+            channel.setState("unpaired");
+            models.add(channel);
+            addSubscriptionAndInstallation(models, "unpaired-", channelId, UNPAIRED_OWNER_ID, i, subscriptions, installations);
+            flushIfFull(models);
+        }
+        flush(models);
+    }
+
+    private void seed(String ownerId, String channelState, int channels, int subscriptions, int installations) {
+        List<SyncpointModel> models = new ArrayList<SyncpointModel>();
+        for (int i = 0; i < channels; i++) {
+            String channelId = "channel-" + i;
+            SyncpointChannel channel = new SyncpointChannel();
+            channel.setId(channelId);
+            channel.setType("channel");
+            channel.setName(channelId);
+            channel.setOwnerId(ownerId);
+            channel.setState(channelState);
+            channel.setCloudDatabase("cloud-channel-" + i);
+            models.add(channel);
+            addSubscriptionAndInstallation(models, "", channelId, ownerId, i, subscriptions, installations);
+            flushIfFull(models);
+        }
+        flush(models);
+    }
+
+    private void addSubscriptionAndInstallation(List<SyncpointModel> models, String prefix, String channelId, String ownerId, int i, int subscriptions, int installations) {
+        if(i >= subscriptions) {
+            return;
+        }
+        String subscriptionId = prefix + "subscription-" + i;
+        SyncpointSubscription subscription = new SyncpointSubscription();
+        subscription.setId(subscriptionId);
+        subscription.setType("subscription");
+        subscription.setOwnerId(ownerId);
+        subscription.setChannelId(channelId);
+        subscription.setState("active");
+        models.add(subscription);
+        if(i >= installations) {
+            return;
+        }
+        SyncpointInstallation installation = new SyncpointInstallation();
+        installation.setId(prefix + "installation-" + i);
+        installation.setType("installation");
+        installation.setOwnerId(ownerId);
+        installation.setChannelId(channelId);
+        installation.setSubscriptionId(subscriptionId);
+        installation.setSessionId(session.getId());
+        installation.setLocalDbName(prefix + "channel-" + i);
+        installation.setState("created");
+        models.add(installation);
+    }
+
+    private void flushIfFull(List<SyncpointModel> models) {
+        if(models.size() >= SEED_BATCH_SIZE) {
+            flush(models);
+        }
+    }
+
+    private void flush(List<SyncpointModel> models) {
+        if(models.isEmpty()) {
+            return;
+        }
+        List<DocumentOperationResult> errors = controlDatabase.executeBulk(models);
+        if(!errors.isEmpty()) {
+            throw new IllegalStateException(String.format("Unable to seed %s", errors.get(0)));
+        }
+        models.clear();
+    }
+
+}
@@ -0,0 +1,887 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.ektorp.http.HttpClient;
+import org.ektorp.http.HttpResponse;
+
+/**
+ * A CouchDB server held in memory, answering Ektorp's requests directly, so the client can be
+ * benchmarked without a network or TouchDB in the numbers.
+ *
+ * It covers what the control plane uses: databases, documents and their revisions, _local
+ * documents, _all_docs, _bulk_docs, non-continuous _changes, and _replicate, which only
+ * acknowledges the request but lists continuous replications in _active_tasks.  Views are native Java map functions registered up front and
+ * indexed on every write, the way a server keeps them up to date; keys collate like CouchDB's
+ * except that strings are compared by code point.
+ *
+ * Every request is served under one lock.  snapshot() and restore() copy the whole server so a
+ * benchmark that changes the data can start every invocation from the same state.
+ */
+public class InMemoryCouchServer implements HttpClient {
+
+    public interface MapFunction {
+
+        /**
+         * Adds the keys the document is indexed under, emitted with null values.
+         */
+        void map(JsonNode doc, List<JsonNode> keys);
+
+    }
+
+    /**
+     * The databases at one point in time.
+     */
+    public static class Snapshot {
+
+        private final Map<String, Database> databases;
+
+        private Snapshot(Map<String, Database> databases) {
+            this.databases = databases;
+        }
+
+    }
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final Comparator<JsonNode> collation = new Comparator<JsonNode>() {
+
+        @Override
+        public int compare(JsonNode a, JsonNode b) {
+            int rankA = rank(a);
+            int rankB = rank(b);
+            if(rankA != rankB) {
+                return rankA < rankB ? -1 : 1;
+            }
+            switch (rankA) {
+            case 3:
+                return Double.compare(a.getDoubleValue(), b.getDoubleValue());
+            case 4:
+                return a.getTextValue().compareTo(b.getTextValue());
+            case 5:
+                for (int i = 0; i < a.size() && i < b.size(); i++) {
+                    int result = compare(a.get(i), b.get(i));
+                    if(result != 0) {
+                        return result;
+                    }
+                }
+                return a.size() - b.size();
+            case 6:
+                return a.size() - b.size();
+            default:
+                return 0;
+            }
+        }
+
+        private int rank(JsonNode node) {
+            if(node == null || node.isNull()) {
+                return 0;
+            } else if(node.isBoolean()) {
+                return node.getBooleanValue() ? 2 : 1;
+            } else if(node.isNumber()) {
+                return 3;
+            } else if(node.isTextual()) {
+                return 4;
+            } else if(node.isArray()) {
+                return 5;
+            }
+            return 6;
+        }
+    };
+
+    private final Map<String, MapFunction> mapFunctions = new HashMap<String, MapFunction>();
+    private Map<String, Database> databases = new TreeMap<String, Database>();
+    // "source -> target" of each continuous replication -> its session id
+    private final Map<String, String> activeReplications = new LinkedHashMap<String, String>();
+    private long revisionCounter = 0;
+    private long requestCount = 0;
+
+    /**
+     * Indexes the documents of every database created from now on with the given function, to
+     * be queried as _design/designDoc/_view/viewName once that design document exists.
+     */
+    public synchronized void registerView(String designDocId, String viewName, MapFunction mapFunction) {
+        mapFunctions.put(viewPath(designDocId, viewName), mapFunction);
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(copy(databases));
+    }
+
+    /**
+     * Puts every database back the way it was when the snapshot was taken.  A snapshot can be
+     * restored any number of times.
+     */
+    public synchronized void restore(Snapshot snapshot) {
+        databases = copy(snapshot.databases);
+    }
+
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    private static Map<String, Database> copy(Map<String, Database> source) {
+        Map<String, Database> result = new TreeMap<String, Database>();
+        for (Map.Entry<String, Database> entry : source.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().copy());
+        }
+        return result;
+    }
+
+    @Override
+    public HttpResponse get(String uri) {
+        return handle("GET", uri, null);
+    }
+
+    @Override
+    public HttpResponse getUncached(String uri) {
+        return handle("GET", uri, null);
+    }
+
+    @Override
+    public HttpResponse head(String uri) {
+        return handle("HEAD", uri, null);
+    }
+
+    @Override
+    public HttpResponse put(String uri) {
+        return handle("PUT", uri, null);
+    }
+
+    @Override
+    public HttpResponse put(String uri, String content) {
+        return handle("PUT", uri, content);
+    }
+
+    @Override
+    public HttpResponse put(String uri, InputStream data, String contentType, long contentLength) {
+        return handle("PUT", uri, read(data));
+    }
+
+    @Override
+    public HttpResponse post(String uri, String content) {
+        return handle("POST", uri, content);
+    }
+
+    @Override
+    public HttpResponse post(String uri, InputStream content) {
+        return handle("POST", uri, read(content));
+    }
+
+    @Override
+    public HttpResponse postUncached(String uri, String content) {
+        return handle("POST", uri, content);
+    }
+
+    @Override
+    public HttpResponse delete(String uri) {
+        return handle("DELETE", uri, null);
+    }
+
+    @Override
+    public void shutdown() {
+
+    }
+
+    private synchronized HttpResponse handle(String method, String uri, String body) {
+        requestCount++;
+        try {
+            return route(method, uri, body);
+        } catch (IOException e) {
+            return error(uri, 400, "bad_request", e.getMessage());
+        }
+    }
+
+    private HttpResponse route(String method, String uri, String body) throws IOException {
+        String path = uri;
+        Map<String, String> query = new HashMap<String, String>();
+        int queryStart = uri.indexOf('?');
+        if(queryStart >= 0) {
+            path = uri.substring(0, queryStart);
+            for (String param : uri.substring(queryStart + 1).split("&")) {
+                int equals = param.indexOf('=');
+                if(equals > 0) {
+                    query.put(decode(param.substring(0, equals)), decode(param.substring(equals + 1)));
+                }
+            }
+        }
+        while(path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        int slash = path.indexOf('/');
+        String dbName = decode(slash >= 0 ? path.substring(0, slash) : path);
+        String rest = slash >= 0 ? path.substring(slash + 1) : "";
+
+        if(dbName.equals("_all_dbs")) {
+            return ok(uri, 200, objectMapper.writeValueAsString(new ArrayList<String>(databases.keySet())));
+        } else if(dbName.equals("_replicate")) {
+            return replicate(uri, objectMapper.readTree(body));
+        } else if(dbName.equals("_active_tasks")) {
+            ArrayNode tasks = objectMapper.createArrayNode();
+            for (Map.Entry<String, String> replication : activeReplications.entrySet()) {
+                ObjectNode task = tasks.addObject();
+                task.put("type", "Replication");
+                task.put("task", replication.getValue());
+                task.put("status", replication.getKey());
+            }
+            return ok(uri, 200, tasks.toString());
+        } else if(dbName.startsWith("_")) {
+            return error(uri, 404, "not_found", "missing");
+        }
+
+        Database database = databases.get(dbName);
+        if(rest.length() == 0) {
+            if(method.equals("PUT")) {
+                if(database != null) {
+                    return error(uri, 412, "file_exists", "The database could not be created, the file already exists.");
+                }
+                databases.put(dbName, new Database(mapFunctions));
+                return ok(uri, 201, "{\"ok\":true}");
+            }
+            if(database == null) {
+                return error(uri, 404, "not_found", "no_db_file");
+            }
+            if(method.equals("DELETE")) {
+                databases.remove(dbName);
+                return ok(uri, 200, "{\"ok\":true}");
+            } else if(method.equals("POST")) {
+                return database.putDocument(uri, null, body);
+            }
+            return ok(uri, 200, database.info(dbName));
+        }
+        if(database == null) {
+            return error(uri, 404, "not_found", "no_db_file");
+        }
+
+        if(rest.equals("_all_docs")) {
+            return database.allDocs(uri, query, body);
+        } else if(rest.equals("_bulk_docs")) {
+            return database.bulkDocs(uri, body);
+        } else if(rest.equals("_changes")) {
+            return database.changes(uri, query);
+        } else if(rest.equals("_ensure_full_commit")) {
+            return ok(uri, 201, "{\"ok\":true}");
+        } else if(rest.startsWith("_design/") && rest.contains("/_view/")) {
+            int view = rest.indexOf("/_view/");
+            String designDocId = decode(rest.substring(0, view));
+            String viewName = decode(rest.substring(view + "/_view/".length()));
+            return database.queryView(uri, designDocId, viewName, query, body);
+        } else if(rest.startsWith("_local/")) {
+            String id = decode(rest.substring("_local/".length()));
+            return database.localDocument(uri, method, id, body, query);
+        }
+
+        String id = decode(rest);
+        if(method.equals("GET") || method.equals("HEAD")) {
+            return database.getDocument(uri, id);
+        } else if(method.equals("PUT")) {
+            return database.putDocument(uri, id, body);
+        } else if(method.equals("DELETE")) {
+            return database.deleteDocument(uri, id, query.get("rev"));
+        }
+        return error(uri, 405, "method_not_allowed", method);
+    }
+
+    private static String viewPath(String designDocId, String viewName) {
+        return designDocId + "/" + viewName;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String read(InputStream in) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private HttpResponse replicate(String uri, JsonNode command) {
+        String name = command.path("source").getValueAsText() + " -> " + command.path("target").getValueAsText();
+        String sessionId = String.valueOf(++revisionCounter);
+        if(command.path("continuous").getBooleanValue()) {
+            if(command.path("cancel").getBooleanValue()) {
+                if(activeReplications.remove(name) == null) {
+                    return error(uri, 404, "not_found", "missing");
+                }
+                return ok(uri, 200, "{\"ok\":true}");
+            }
+            if(activeReplications.containsKey(name)) {
+                sessionId = activeReplications.get(name);
+            } else {
+                activeReplications.put(name, sessionId);
+            }
+        }
+        return ok(uri, 200, String.format("{\"ok\":true,\"session_id\":\"%s\",\"source_last_seq\":0}", sessionId));
+    }
+
+    private static HttpResponse ok(String uri, int code, String body) {
+        return new Response(uri, code, body);
+    }
+
+    private static HttpResponse error(String uri, int code, String error, String reason) {
+        ObjectNode body = objectMapper.createObjectNode();
+        body.put("error", error);
+        body.put("reason", reason);
+        return new Response(uri, code, body.toString());
+    }
+
+    /**
+     * One revision of a document, never modified once stored.
+     */
+    private static class Document {
+
+        final String id;
+        final String revision;
+        final String json;
+        final boolean deleted;
+        final long sequence;
+
+        Document(String id, String revision, String json, boolean deleted, long sequence) {
+            this.id = id;
+            this.revision = revision;
+            this.json = json;
+            this.deleted = deleted;
+            this.sequence = sequence;
+        }
+
+        int generation() {
+            return Integer.parseInt(revision.substring(0, revision.indexOf('-')));
+        }
+    }
+
+    /**
+     * A view row; rows with the same key sort by document id.
+     */
+    private static class ViewRow implements Comparable<ViewRow> {
+
+        final JsonNode key;
+        final String docId;
+        // -1 or 1 to sort before or after every row with the same key, for range bounds
+        final int bound;
+
+        ViewRow(JsonNode key, String docId, int bound) {
+            this.key = key;
+            this.docId = docId;
+            this.bound = bound;
+        }
+
+        @Override
+        public int compareTo(ViewRow other) {
+            int result = collation.compare(key, other.key);
+            if(result != 0) {
+                return result;
+            }
+            if(bound != 0 || other.bound != 0) {
+                return bound - other.bound;
+            }
+            return docId.compareTo(other.docId);
+        }
+    }
+
+    private static class View {
+
+        final MapFunction mapFunction;
+        final TreeMap<ViewRow, Document> rows;
+        final Map<String, List<JsonNode>> keysByDocId;
+
+        View(MapFunction mapFunction) {
+            this(mapFunction, new TreeMap<ViewRow, Document>(), new HashMap<String, List<JsonNode>>());
+        }
+
+        View(MapFunction mapFunction, TreeMap<ViewRow, Document> rows, Map<String, List<JsonNode>> keysByDocId) {
+            this.mapFunction = mapFunction;
+            this.rows = rows;
+            this.keysByDocId = keysByDocId;
+        }
+
+        View copy() {
+            return new View(mapFunction, new TreeMap<ViewRow, Document>(rows), new HashMap<String, List<JsonNode>>(keysByDocId));
+        }
+
+        void update(Document previous, Document current, JsonNode node) {
+            if(previous != null) {
+                List<JsonNode> keys = keysByDocId.remove(previous.id);
+                if(keys != null) {
+                    for (JsonNode key : keys) {
+                        rows.remove(new ViewRow(key, previous.id, 0));
+                    }
+                }
+            }
+            if(current.deleted) {
+                return;
+            }
+            List<JsonNode> keys = new ArrayList<JsonNode>(1);
+            mapFunction.map(node, keys);
+            if(keys.isEmpty()) {
+                return;
+            }
+            keysByDocId.put(current.id, keys);
+            for (JsonNode key : keys) {
+                rows.put(new ViewRow(key, current.id, 0), current);
+            }
+        }
+    }
+
+    private class Database {
+
+        final TreeMap<String, Document> documents;
+        final Map<String, String> localDocuments;
+        final Map<String, View> views;
+        long updateSequence;
+        long diskSize;
+
+        Database(Map<String, MapFunction> mapFunctions) {
+            this.documents = new TreeMap<String, Document>();
+            this.localDocuments = new HashMap<String, String>();
+            this.views = new HashMap<String, View>();
+            for (Map.Entry<String, MapFunction> entry : mapFunctions.entrySet()) {
+                views.put(entry.getKey(), new View(entry.getValue()));
+            }
+        }
+
+        private Database(Database other) {
+            this.documents = new TreeMap<String, Document>(other.documents);
+            this.localDocuments = new HashMap<String, String>(other.localDocuments);
+            this.views = new HashMap<String, View>();
+            for (Map.Entry<String, View> entry : other.views.entrySet()) {
+                views.put(entry.getKey(), entry.getValue().copy());
+            }
+            this.updateSequence = other.updateSequence;
+            this.diskSize = other.diskSize;
+        }
+
+        Database copy() {
+            return new Database(this);
+        }
+
+        String info(String name) throws IOException {
+            int docCount = 0;
+            for (Document document : documents.values()) {
+                if(!document.deleted) {
+                    docCount++;
+                }
+            }
+            ObjectNode info = objectMapper.createObjectNode();
+            info.put("db_name", name);
+            info.put("doc_count", docCount);
+            info.put("doc_del_count", documents.size() - docCount);
+            info.put("update_seq", updateSequence);
+            info.put("disk_size", diskSize);
+            info.put("data_size", diskSize);
+            info.put("instance_start_time", "0");
+            info.put("disk_format_version", 5);
+            info.put("compact_running", false);
+            info.put("purge_seq", 0);
+            info.put("committed_update_seq", updateSequence);
+            return info.toString();
+        }
+
+        HttpResponse getDocument(String uri, String id) {
+            Document document = documents.get(id);
+            if(document == null || document.deleted) {
+                return error(uri, 404, "not_found", document == null ? "missing" : "deleted");
+            }
+            return ok(uri, 200, document.json);
+        }
+
+        HttpResponse putDocument(String uri, String id, String body) throws IOException {
+            Document document = write(id, (ObjectNode)objectMapper.readTree(body));
+            if(document == null) {
+                return error(uri, 409, "conflict", "Document update conflict.");
+            }
+            return ok(uri, 201, String.format("{\"ok\":true,\"id\":%s,\"rev\":\"%s\"}", quote(document.id), document.revision));
+        }
+
+        HttpResponse deleteDocument(String uri, String id, String revision) throws IOException {
+            ObjectNode node = objectMapper.createObjectNode();
+            if(revision != null) {
+                node.put("_rev", revision);
+            }
+            node.put("_deleted", true);
+            return putDocument(uri, id, node.toString());
+        }
+
+        /**
+         * Stores a new revision, returning null if the revision given is not the current one.
+         */
+        private Document write(String id, ObjectNode node) {
+            // unique across restores, so a revision is never handed out twice
+            long counter = ++revisionCounter;
+            if(id == null) {
+                id = node.has("_id") ? node.get("_id").getTextValue() : String.format("%032x", counter);
+            }
+            JsonNode revisionNode = node.get("_rev");
+            String revision = revisionNode != null && !revisionNode.isNull() ? revisionNode.getTextValue() : null;
+            Document previous = documents.get(id);
+            boolean current = previous != null && previous.revision.equals(revision);
+            if(previous != null && !previous.deleted ? !current : revision != null && !current) {
+                return null;
+            }
+            boolean deleted = node.has("_deleted") && node.get("_deleted").getBooleanValue();
+            int generation = previous != null ? previous.generation() + 1 : 1;
+            String newRevision = String.format("%d-%016x", generation, counter);
+
+            ObjectNode stored = objectMapper.createObjectNode();
+            stored.put("_id", id);
+            stored.put("_rev", newRevision);
+            if(deleted) {
+                stored.put("_deleted", true);
+            } else {
+                Iterator<Map.Entry<String, JsonNode>> fields = node.getFields();
+                while(fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    if(!field.getKey().equals("_id") && !field.getKey().equals("_rev")) {
+                        stored.put(field.getKey(), field.getValue());
+                    }
+                }
+            }
+            String json = stored.toString();
+            Document document = new Document(id, newRevision, json, deleted, ++updateSequence);
+            documents.put(id, document);
+            diskSize += json.length();
+            for (View view : views.values()) {
+                view.update(previous, document, stored);
+            }
+            return document;
+        }
+
+        HttpResponse bulkDocs(String uri, String body) throws IOException {
+            JsonNode request = objectMapper.readTree(body);
+            JsonNode docs = request.isArray() ? request : request.get("docs");
+            StringBuilder result = new StringBuilder("[");
+            for (JsonNode doc : docs) {
+                if(result.length() > 1) {
+                    result.append(',');
+                }
+                Document document = write(null, (ObjectNode)doc);
+                if(document != null) {
+                    result.append(String.format("{\"id\":%s,\"rev\":\"%s\"}", quote(document.id), document.revision));
+                } else {
+                    result.append(String.format("{\"id\":%s,\"error\":\"conflict\",\"reason\":\"Document update conflict.\"}", quote(doc.path("_id").getTextValue())));
+                }
+            }
+            return ok(uri, 201, result.append(']').toString());
+        }
+
+        HttpResponse allDocs(String uri, Map<String, String> query, String body) throws IOException {
+            boolean includeDocs = "true".equals(query.get("include_docs"));
+            List<String> rows = new ArrayList<String>();
+            JsonNode keys = keys(query, body);
+            if(keys != null) {
+                for (JsonNode key : keys) {
+                    Document document = documents.get(key.getTextValue());
+                    if(document == null) {
+                        rows.add(String.format("{\"key\":%s,\"error\":\"not_found\"}", key));
+                    } else {
+                        rows.add(allDocsRow(document, includeDocs));
+                    }
+                }
+                return viewResponse(uri, documents.size(), 0, rows);
+            }
+
+            NavigableMap<String, Document> range = documents;
+            boolean descending = "true".equals(query.get("descending"));
+            String startKey = textKey(query, "startkey");
+            String endKey = textKey(query, "endkey");
+            if(descending) {
+                range = range.descendingMap();
+            }
+            if(startKey != null) {
+                range = range.tailMap(startKey, true);
+            }
+            if(endKey != null) {
+                range = range.headMap(endKey, !"false".equals(query.get("inclusive_end")));
+            }
+            int skip = intParam(query, "skip", 0);
+            int limit = intParam(query, "limit", Integer.MAX_VALUE);
+            for (Document document : range.values()) {
+                if(document.deleted) {
+                    continue;
+                }
+                if(skip > 0) {
+                    skip--;
+                    continue;
+                }
+                if(rows.size() >= limit) {
+                    break;
+                }
+                rows.add(allDocsRow(document, includeDocs));
+            }
+            return viewResponse(uri, documents.size(), 0, rows);
+        }
+
+        private String allDocsRow(Document document, boolean includeDocs) {
+            if(document.deleted) {
+                return String.format("{\"id\":%s,\"key\":%s,\"value\":{\"rev\":\"%s\",\"deleted\":true},\"doc\":null}",
+                        quote(document.id), quote(document.id), document.revision);
+            }
+            return String.format("{\"id\":%s,\"key\":%s,\"value\":{\"rev\":\"%s\"}%s}",
+                    quote(document.id), quote(document.id), document.revision, includeDocs ? ",\"doc\":" + document.json : "");
+        }
+
+        HttpResponse queryView(String uri, String designDocId, String viewName, Map<String, String> query, String body) throws IOException {
+            View view = views.get(viewPath(designDocId, viewName));
+            Document designDoc = documents.get(designDocId);
+            if(view == null || designDoc == null || designDoc.deleted) {
+                return error(uri, 404, "not_found", "missing_named_view");
+            }
+            boolean includeDocs = "true".equals(query.get("include_docs"));
+            List<String> rows = new ArrayList<String>();
+            JsonNode keys = keys(query, body);
+            if(keys != null) {
+                for (JsonNode key : keys) {
+                    addViewRows(rows, view.rows.subMap(new ViewRow(key, null, -1), true, new ViewRow(key, null, 1), true), includeDocs, 0, Integer.MAX_VALUE);
+                }
+                return viewResponse(uri, view.rows.size(), 0, rows);
+            }
+
+            boolean descending = "true".equals(query.get("descending"));
+            NavigableMap<ViewRow, Document> range = descending ? view.rows.descendingMap() : view.rows;
+            JsonNode key = jsonParam(query, "key");
+            JsonNode startKey = key != null ? key : jsonParam(query, "startkey");
+            JsonNode endKey = key != null ? key : jsonParam(query, "endkey");
+            if(startKey != null) {
+                range = range.tailMap(new ViewRow(startKey, null, descending ? 1 : -1), true);
+            }
+            if(endKey != null) {
+                boolean inclusiveEnd = !"false".equals(query.get("inclusive_end"));
+                int bound = descending ? (inclusiveEnd ? -1 : 1) : (inclusiveEnd ? 1 : -1);
+                range = range.headMap(new ViewRow(endKey, null, bound), true);
+            }
+            addViewRows(rows, range, includeDocs, intParam(query, "skip", 0), intParam(query, "limit", Integer.MAX_VALUE));
+            return viewResponse(uri, view.rows.size(), 0, rows);
+        }
+
+        private void addViewRows(List<String> rows, Map<ViewRow, Document> range, boolean includeDocs, int skip, int limit) throws IOException {
+            int added = 0;
+            for (Map.Entry<ViewRow, Document> entry : range.entrySet()) {
+                if(skip > 0) {
+                    skip--;
+                    continue;
+                }
+                if(added++ >= limit) {
+                    break;
+                }
+                Document document = entry.getValue();
+                rows.add(String.format("{\"id\":%s,\"key\":%s,\"value\":null%s}",
+                        quote(document.id), objectMapper.writeValueAsString(entry.getKey().key), includeDocs ? ",\"doc\":" + document.json : ""));
+            }
+        }
+
+        HttpResponse changes(String uri, Map<String, String> query) {
+            if("continuous".equals(query.get("feed")) || "longpoll".equals(query.get("feed"))) {
+                return error(uri, 400, "bad_request", "only normal changes feeds are supported");
+            }
+            long since = query.containsKey("since") ? Long.parseLong(query.get("since")) : 0;
+            int limit = intParam(query, "limit", Integer.MAX_VALUE);
+            List<Document> changed = new ArrayList<Document>();
+            for (Document document : documents.values()) {
+                if(document.sequence > since) {
+                    changed.add(document);
+                }
+            }
+            Collections.sort(changed, new Comparator<Document>() {
+
+                @Override
+                public int compare(Document a, Document b) {
+                    return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+                }
+            });
+            StringBuilder result = new StringBuilder("{\"results\":[");
+            long lastSequence = since;
+            int count = 0;
+            for (Document document : changed) {
+                if(count >= limit) {
+                    break;
+                }
+                if(count++ > 0) {
+                    result.append(',');
+                }
+                result.append(String.format("{\"seq\":%d,\"id\":%s,\"changes\":[{\"rev\":\"%s\"}]%s}",
+                        document.sequence, quote(document.id), document.revision, document.deleted ? ",\"deleted\":true" : ""));
+                lastSequence = document.sequence;
+            }
+            result.append("],\"last_seq\":").append(lastSequence).append('}');
+            return ok(uri, 200, result.toString());
+        }
+
+        HttpResponse localDocument(String uri, String method, String id, String body, Map<String, String> query) throws IOException {
+            String json = localDocuments.get(id);
+            String revision = json != null ? objectMapper.readTree(json).get("_rev").getTextValue() : null;
+            if(method.equals("GET") || method.equals("HEAD")) {
+                return json != null ? ok(uri, 200, json) : error(uri, 404, "not_found", "missing");
+            }
+            String expected = method.equals("DELETE") ? query.get("rev") : null;
+            ObjectNode node = null;
+            if(method.equals("PUT")) {
+                node = (ObjectNode)objectMapper.readTree(body);
+                expected = node.has("_rev") ? node.get("_rev").getTextValue() : null;
+            }
+            if(revision != null ? !revision.equals(expected) : expected != null) {
+                return revision == null ? error(uri, 404, "not_found", "missing") : error(uri, 409, "conflict", "Document update conflict.");
+            }
+            if(method.equals("DELETE")) {
+                localDocuments.remove(id);
+                return ok(uri, 200, String.format("{\"ok\":true,\"id\":%s,\"rev\":\"0-0\"}", quote("_local/" + id)));
+            }
+            int generation = revision != null ? Integer.parseInt(revision.substring(2)) + 1 : 1;
+            String newRevision = "0-" + generation;
+            node.put("_id", "_local/" + id);
+            node.put("_rev", newRevision);
+            localDocuments.put(id, node.toString());
+            return ok(uri, 201, String.format("{\"ok\":true,\"id\":%s,\"rev\":\"%s\"}", quote("_local/" + id), newRevision));
+        }
+    }
+
+    private static JsonNode keys(Map<String, String> query, String body) throws IOException {
+        if(body != null && body.length() > 0) {
+            JsonNode keys = objectMapper.readTree(body).get("keys");
+            if(keys instanceof ArrayNode) {
+                return keys;
+            }
+        }
+        return jsonParam(query, "keys");
+    }
+
+    private static String textKey(Map<String, String> query, String name) throws IOException {
+        JsonNode node = jsonParam(query, name);
+        return node != null ? node.getTextValue() : null;
+    }
+
+    private static JsonNode jsonParam(Map<String, String> query, String name) throws IOException {
+        String value = query.get(name);
+        return value != null ? objectMapper.readTree(value) : null;
+    }
+
+    private static int intParam(Map<String, String> query, String name, int defaultValue) {
+        String value = query.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static HttpResponse viewResponse(String uri, int totalRows, int offset, List<String> rows) {
+        StringBuilder result = new StringBuilder();
+        result.append("{\"total_rows\":").append(totalRows).append(",\"offset\":").append(offset).append(",\"rows\":[");
+        for (int i = 0; i < rows.size(); i++) {
+            if(i > 0) {
+                result.append(',');
+            }
+            result.append(rows.get(i));
+        }
+        return ok(uri, 200, result.append("]}").toString());
+    }
+
+    private static String quote(String text) {
+        try {
+            return objectMapper.writeValueAsString(text);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Response implements HttpResponse {
+
+        private final String requestURI;
+        private final int code;
+        private final byte[] content;
+
+        Response(String requestURI, int code, String body) {
+            this.requestURI = requestURI;
+            this.code = code;
+            try {
+                this.content = body.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean isSuccessful() {
+            return code < 300;
+        }
+
+        @Override
+        public int getCode() {
+            return code;
+        }
+
+        @Override
+        public String getRequestURI() {
+            return requestURI;
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/json";
+        }
+
+        @Override
+        public int getContentLength() {
+            return content.length;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public void releaseConnection() {
+
+        }
+
+        @Override
+        public void abort() {
+
+        }
+    }
+
+}
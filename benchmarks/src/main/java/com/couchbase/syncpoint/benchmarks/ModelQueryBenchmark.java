@@ -0,0 +1,122 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.couchbase.syncpoint.impl.SyncpointModelFactory;
+import com.couchbase.syncpoint.model.SyncpointChannel;
+import com.couchbase.syncpoint.model.SyncpointInstallation;
+import com.couchbase.syncpoint.model.SyncpointSession;
+import com.couchbase.syncpoint.model.SyncpointSubscription;
+
+/**
+ * The view queries behind the model finders, and the session finders built on them, with the
+ * model cache not loaded so every call reads the control database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelQueryBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int channels;
+
+    @Param({"100"})
+    public int subscribedPercent;
+
+    @Param({"100"})
+    public int installedPercent;
+
+    private ControlDatabaseFixture fixture;
+    private SyncpointSession session;
+    private String lastChannelName;
+    private String lastChannelId;
+
+    @Setup
+    public void setUp() {
+        fixture = new ControlDatabaseFixture();
+        session = fixture.createSession();
+        int subscriptions = channels * subscribedPercent / 100;
+        fixture.seedChannels(channels, subscriptions, subscriptions * installedPercent / 100);
+        lastChannelName = "channel-" + (channels - 1);
+        lastChannelId = "channel-" + (channels - 1);
+    }
+
+    @Benchmark
+    public List<SyncpointChannel> getModelsOfType() {
+        return SyncpointModelFactory.getModelsOfType(fixture.getServer(), fixture.getControlDatabase(), "channel", SyncpointChannel.class);
+    }
+
+    @Benchmark
+    public List<SyncpointSubscription> getModelsOfTypeAndOwner() {
+        return SyncpointModelFactory.getModelsOfType(fixture.getServer(), fixture.getControlDatabase(), "subscription", ControlDatabaseFixture.OWNER_ID, SyncpointSubscription.class);
+    }
+
+    @Benchmark
+    public List<SyncpointInstallation> getModelsOfTypeInChannel() {
+        return SyncpointModelFactory.getModelsOfTypeInChannel(fixture.getServer(), fixture.getControlDatabase(), "installation", lastChannelId, SyncpointInstallation.class);
+    }
+
+    @Benchmark
+    public List<SyncpointChannel> sessionGetMyChannels() {
+        return session.getMyChannels();
+    }
+
+    @Benchmark
+    public SyncpointChannel sessionGetMyChannel() {
+        return session.getMyChannel(lastChannelName);
+    }
+
+    @Benchmark
+    public List<SyncpointChannel> sessionGetUnpairedChannels() {
+        return session.getUnpairedChannels();
+    }
+
+    @Benchmark
+    public List<SyncpointSubscription> sessionGetActiveSubscriptions() {
+        return session.getActiveSubscriptions();
+    }
+
+    @Benchmark
+    public List<SyncpointSubscription> sessionGetInstalledSubscriptions() {
+        return session.getInstalledSubscriptions();
+    }
+
+    @Benchmark
+    public List<SyncpointInstallation> sessionGetAllInstallations() {
+        return session.getAllInstallations();
+    }
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.ektorp.impl.StdObjectMapperFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.couchbase.syncpoint.impl.SyncpointModelFactory;
+import com.couchbase.syncpoint.model.SyncpointChannel;
+import com.couchbase.syncpoint.model.SyncpointInstallation;
+import com.couchbase.syncpoint.model.SyncpointSession;
+import com.couchbase.syncpoint.model.SyncpointSubscription;
+
+/**
+ * Turning single control documents into models and back, with the object mapper Ektorp uses.
+ * bindModel() is what every query does per matching row, including the snapshot taken for
+ * dirty tracking.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelSerializationBenchmark {
+
+    private final ObjectMapper objectMapper = new StdObjectMapperFactory().createObjectMapper();
+
+    private ControlDatabaseFixture fixture;
+    private SyncpointSession session;
+    private SyncpointChannel channel;
+    private SyncpointSubscription subscription;
+    private SyncpointInstallation installation;
+    private String sessionJson;
+    private String channelJson;
+    private String subscriptionJson;
+    private String installationJson;
+    private JsonNode channelNode;
+    private JsonNode installationNode;
+
+    @Setup
+    public void setUp() throws IOException {
+        fixture = new ControlDatabaseFixture();
+        session = fixture.createSession();
+        fixture.seedChannels(1, 1, 1);
+        channel = fixture.getControlDatabase().get(SyncpointChannel.class, "channel-0");
+        subscription = fixture.getControlDatabase().get(SyncpointSubscription.class, "subscription-0");
+        installation = fixture.getControlDatabase().get(SyncpointInstallation.class, "installation-0");
+        sessionJson = objectMapper.writeValueAsString(session);
+        channelJson = objectMapper.writeValueAsString(channel);
+        subscriptionJson = objectMapper.writeValueAsString(subscription);
+        installationJson = objectMapper.writeValueAsString(installation);
+        channelNode = objectMapper.readTree(channelJson);
+        installationNode = objectMapper.readTree(installationJson);
+    }
+
+    @Benchmark
+    public String serializeSession() throws IOException {
+        return objectMapper.writeValueAsString(session);
+    }
+
+    @Benchmark
+    public String serializeChannel() throws IOException {
+        return objectMapper.writeValueAsString(channel);
+    }
+
+    @Benchmark
+    public String serializeSubscription() throws IOException {
+        return objectMapper.writeValueAsString(subscription);
+    }
+
+    @Benchmark
+    public String serializeInstallation() throws IOException {
+        return objectMapper.writeValueAsString(installation);
+    }
+
+    @Benchmark
+    public SyncpointSession deserializeSession() throws IOException {
+        return objectMapper.readValue(sessionJson, SyncpointSession.class);
+    }
+
+    @Benchmark
+    public SyncpointChannel deserializeChannel() throws IOException {
+        return objectMapper.readValue(channelJson, SyncpointChannel.class);
+    }
+
+    @Benchmark
+    public SyncpointSubscription deserializeSubscription() throws IOException {
+        return objectMapper.readValue(subscriptionJson, SyncpointSubscription.class);
+    }
+
+    @Benchmark
+    public SyncpointInstallation deserializeInstallation() throws IOException {
+        return objectMapper.readValue(installationJson, SyncpointInstallation.class);
+    }
+
+    @Benchmark
+    public SyncpointChannel bindChannel() {
+        return SyncpointModelFactory.bindModel(channelNode, fixture.getServer(), fixture.getControlDatabase(), SyncpointChannel.class);
+    }
+
+    @Benchmark
+    public SyncpointInstallation bindInstallation() {
+        return SyncpointModelFactory.bindModel(installationNode, fixture.getServer(), fixture.getControlDatabase(), SyncpointInstallation.class);
+    }
+
+}
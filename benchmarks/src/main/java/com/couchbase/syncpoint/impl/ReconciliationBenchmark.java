@@ -0,0 +1,198 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.ektorp.CouchDbInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.couchbase.syncpoint.benchmarks.ControlDatabaseFixture;
+import com.couchbase.syncpoint.benchmarks.InMemoryCouchServer;
+import com.couchbase.syncpoint.model.SyncpointSessionHolder;
+
+/**
+ * What the client does with the control database as a whole: the reconciliation pass of
+ * getUpToDateWithSubscriptions(), and mergeExistingChannels() after pairing.
+ *
+ * The reconciliation benchmarks measure the steady state, where every subscription is
+ * already installed and syncing and a pass only has to find that out.  The merge changes the
+ * data, so the database is put back from a snapshot before every invocation; copying it is
+ * not timed, but it is counted by the gc profiler's allocation figures.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReconciliationBenchmark {
+
+    @State(Scope.Benchmark)
+    public abstract static class Subscriptions {
+
+        @Param({"10", "100", "1000", "10000"})
+        public int channels;
+
+        @Param({"100"})
+        public int subscribedPercent;
+
+        @Param({"100"})
+        public int installedPercent;
+
+        ControlDatabaseFixture fixture;
+        ControlModelCache cache;
+        ReplicationRegistry registry;
+        ReplicationScheduler replicationScheduler;
+        SubscriptionReconciler reconciler;
+
+        void open(boolean loadCache) throws InterruptedException {
+            fixture = new ControlDatabaseFixture();
+            fixture.createSession();
+            int subscriptions = channels * subscribedPercent / 100;
+            fixture.seedChannels(channels, subscriptions, subscriptions * installedPercent / 100);
+
+            CouchDbInstance server = fixture.getServer();
+            cache = new ControlModelCache(server, fixture.getControlDatabase());
+            SyncpointSessionHolder sessionHolder = SyncpointSessionHolder.getInstance(fixture.getPreferences(), server, fixture.getControlDatabase());
+            sessionHolder.setModelCache(cache);
+            if(loadCache) {
+                cache.load();
+            }
+            registry = new ReplicationRegistry(server);
+            replicationScheduler = new ReplicationScheduler(server, registry, ReplicationScheduler.DEFAULT_MAX_CONCURRENT);
+            reconciler = new SubscriptionReconciler(sessionHolder, cache, replicationScheduler, ConnectorCache.forServer(server));
+
+            // the first pass installs and starts syncing everything, so it stays out of the numbers
+            reconciler.reconcile(null);
+            awaitReplicationsStarted();
+        }
+
+        private void awaitReplicationsStarted() throws InterruptedException {
+            int running;
+            do {
+                running = registry.getRunningCount();
+                Thread.sleep(100);
+            } while(replicationScheduler.getQueuedCount() > 0 || registry.getRunningCount() != running);
+        }
+
+        @TearDown
+        public void tearDown() {
+            replicationScheduler.shutdown();
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class FullPass extends Subscriptions {
+
+        @Param({"false", "true"})
+        public boolean cachedModels;
+
+        @Setup
+        public void setUp() throws InterruptedException {
+            open(cachedModels);
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class ChangedChannel extends Subscriptions {
+
+        Set<String> changedDocIds;
+
+        @Setup
+        public void setUp() throws InterruptedException {
+            // passes over changed documents only happen once the cache is loaded
+            open(true);
+            changedDocIds = Collections.singleton("channel-" + (channels - 1));
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class UnpairedChannels {
+
+        @Param({"10", "100", "1000", "10000"})
+        public int channels;
+
+        @Param({"100"})
+        public int subscribedPercent;
+
+        @Param({"100"})
+        public int installedPercent;
+
+        @Param({"50"})
+        public int matchingPercent;
+
+        ControlDatabaseFixture fixture;
+        SyncpointClientImpl client;
+        InMemoryCouchServer.Snapshot snapshot;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            fixture = new ControlDatabaseFixture();
+            fixture.createSession();
+            int subscriptions = channels * subscribedPercent / 100;
+            fixture.seedUnpairedChannels(channels, subscriptions, subscriptions * installedPercent / 100, channels * matchingPercent / 100);
+            client = SyncpointClientImpl.open(fixture.getPlatform(), fixture.getServer(), ControlDatabaseFixture.getRemoteServerURL(), ControlDatabaseFixture.APP_ID, null);
+            client.awaitReady();
+            snapshot = fixture.getHttpClient().snapshot();
+        }
+
+        @Setup(Level.Invocation)
+        public void restore() {
+            fixture.getHttpClient().restore(snapshot);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            client.shutdown();
+        }
+
+    }
+
+    @Benchmark
+    public void getUpToDateWithSubscriptions(FullPass state) {
+        state.reconciler.reconcile(null);
+    }
+
+    @Benchmark
+    public void getUpToDateWithChangedChannel(ChangedChannel state) {
+        state.reconciler.reconcile(state.changedDocIds);
+    }
+
+    @Benchmark
+    public void mergeExistingChannels(UnpairedChannels state) {
+        state.client.mergeExistingChannels();
+    }
+
+}
@@ -0,0 +1,111 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.couchbase.syncpoint.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.ektorp.UpdateConflictException;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.syncpoint.benchmarks.ControlDatabaseFixture;
+import com.couchbase.syncpoint.model.SyncpointChannel;
+
+/**
+ * The cache hands out copies, so what callers do with them only reaches the cache through
+ * a successful write.
+ */
+public class ControlModelCacheTest {
+
+    private ControlDatabaseFixture fixture;
+    private ControlModelCache cache;
+
+    @Before
+    public void setUp() {
+        fixture = new ControlDatabaseFixture();
+        fixture.createSession();
+        fixture.seedChannels(3, 3, 3);
+        cache = new ControlModelCache(fixture.getServer(), fixture.getControlDatabase());
+        cache.load();
+    }
+
+    @Test
+    public void changingALookedUpModelLeavesTheCacheAlone() {
+        SyncpointChannel channel = (SyncpointChannel)cache.getModel("channel-0");
+        channel.setState("changed");
+
+        assertEquals("ready", ((SyncpointChannel)cache.getModel("channel-0")).getState());
+        for (SyncpointChannel cached : cache.getModelsOfType("channel", SyncpointChannel.class)) {
+            assertEquals("ready", cached.getState());
+        }
+    }
+
+    @Test
+    public void lookupsReturnNewModels() {
+        assertNotSame(cache.getModel("channel-0"), cache.getModel("channel-0"));
+        assertEquals(cache.getModel("channel-0"), cache.getModel("channel-0"));
+    }
+
+    @Test
+    public void savedChangesAreCached() {
+        SyncpointChannel channel = (SyncpointChannel)cache.getModel("channel-0");
+        channel.setOwnerId("other-owner");
+        channel.update();
+
+        assertEquals("other-owner", ((SyncpointChannel)cache.getModel("channel-0")).getOwnerId());
+        List<SyncpointChannel> owned = cache.getModelsOfType("channel", "other-owner", SyncpointChannel.class);
+        assertEquals(1, owned.size());
+        assertEquals(channel.getRevision(), owned.get(0).getRevision());
+        assertEquals(2, cache.getModelsOfType("channel", ControlDatabaseFixture.OWNER_ID, SyncpointChannel.class).size());
+    }
+
+    @Test
+    public void failedWriteLeavesTheCacheAsTheDatabaseIs() {
+        SyncpointChannel first = (SyncpointChannel)cache.getModel("channel-0");
+        SyncpointChannel second = (SyncpointChannel)cache.getModel("channel-0");
+        first.setState("first");
+        first.update();
+        second.setState("second");
+        try {
+            second.update();
+            fail("Expected a conflict");
+        } catch (UpdateConflictException e) {
+            // expected
+        }
+
+        assertEquals("first", ((SyncpointChannel)cache.getModel("channel-0")).getState());
+    }
+
+    @Test
+    public void unsavedModelsAreOnlyEqualToThemselves() {
+        SyncpointChannel channel = new SyncpointChannel();
+        SyncpointChannel other = new SyncpointChannel();
+
+        assertTrue(channel.equals(channel));
+        assertFalse(channel.equals(other));
+        assertEquals(channel.hashCode(), channel.hashCode());
+    }
+
+}
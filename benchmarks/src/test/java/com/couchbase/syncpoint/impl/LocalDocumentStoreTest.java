@@ -0,0 +1,89 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.impl.StdCouchDbInstance;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.syncpoint.benchmarks.InMemoryCouchServer;
+import com.couchbase.syncpoint.model.SessionLocalState;
+
+/**
+ * Local documents read back the way they were put, although the server adds _id and _rev.
+ */
+public class LocalDocumentStoreTest {
+
+    private CouchDbConnector database;
+
+    @Before
+    public void setUp() {
+        database = new StdCouchDbInstance(new InMemoryCouchServer()).createConnector("local-documents", true);
+    }
+
+    @Test
+    public void feedCheckpointRoundTrips() {
+        SyncpointClientImpl.FeedCheckpoint checkpoint = new SyncpointClientImpl.FeedCheckpoint();
+        checkpoint.seq = 42;
+        new LocalDocumentStore(database).put(SyncpointClientImpl.FEED_CHECKPOINT_ID, checkpoint);
+
+        // a new store, as after a restart, so nothing is remembered
+        SyncpointClientImpl.FeedCheckpoint read = new LocalDocumentStore(database).get(SyncpointClientImpl.FEED_CHECKPOINT_ID, SyncpointClientImpl.FeedCheckpoint.class);
+        assertEquals(42, read.seq);
+    }
+
+    @Test
+    public void sessionLocalStateRoundTrips() {
+        LocalDocumentStore store = new LocalDocumentStore(database);
+        SessionLocalState state = new SessionLocalState();
+        state.setPairingType("email");
+        state.setPairingToken("token");
+        store.put("session", state);
+        state.setControlDbSynced(true);
+        store.put("session", state);
+
+        SessionLocalState read = new LocalDocumentStore(database).get("session", SessionLocalState.class);
+        assertEquals("email", read.getPairingType());
+        assertEquals("token", read.getPairingToken());
+        assertTrue(read.isControlDbSynced());
+    }
+
+    @Test
+    public void updatesAfterReading() {
+        SyncpointClientImpl.FeedCheckpoint checkpoint = new SyncpointClientImpl.FeedCheckpoint();
+        checkpoint.seq = 1;
+        new LocalDocumentStore(database).put(SyncpointClientImpl.FEED_CHECKPOINT_ID, checkpoint);
+
+        LocalDocumentStore store = new LocalDocumentStore(database);
+        checkpoint = store.get(SyncpointClientImpl.FEED_CHECKPOINT_ID, SyncpointClientImpl.FeedCheckpoint.class);
+        checkpoint.seq = 2;
+        store.put(SyncpointClientImpl.FEED_CHECKPOINT_ID, checkpoint);
+        assertEquals(2, store.get(SyncpointClientImpl.FEED_CHECKPOINT_ID, SyncpointClientImpl.FeedCheckpoint.class).seq);
+    }
+
+    @Test
+    public void missingDocumentIsNull() {
+        assertNull(new LocalDocumentStore(database).get("missing", SyncpointClientImpl.FeedCheckpoint.class));
+    }
+
+}
@@ -0,0 +1,213 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.couchbase.syncpoint.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs are collapsed, follow up on requests made while running, and are retried after a
+ * failure without waiting for another request.
+ */
+public class ReconciliationSchedulerTest {
+
+    private static final long QUIET_PERIOD_MS = 20;
+    private static final long TIMEOUT_MS = 5000;
+
+    private ScheduledExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void burstIsCollapsedIntoOneRun() throws InterruptedException {
+        RecordingReconciliation reconciliation = new RecordingReconciliation(1);
+        ReconciliationScheduler scheduler = newScheduler(reconciliation);
+        scheduler.requestRun("a", 1);
+        scheduler.requestRun("b", 2);
+        scheduler.requestRun("a", 3);
+
+        assertTrue(reconciliation.awaitReconciledThrough(3));
+        Thread.sleep(QUIET_PERIOD_MS * 5);
+        assertEquals(1, reconciliation.getRuns().size());
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), reconciliation.getRuns().get(0));
+    }
+
+    @Test
+    public void fullRunWins() throws InterruptedException {
+        RecordingReconciliation reconciliation = new RecordingReconciliation(1);
+        ReconciliationScheduler scheduler = newScheduler(reconciliation);
+        scheduler.requestRun("a");
+        scheduler.requestFullRun();
+
+        assertTrue(reconciliation.await());
+        assertNull(reconciliation.getRuns().get(0));
+    }
+
+    @Test
+    public void failedRunIsRetriedAsAFullRun() throws InterruptedException {
+        RecordingReconciliation reconciliation = new RecordingReconciliation(2);
+        reconciliation.failuresLeft = 1;
+        ReconciliationScheduler scheduler = newScheduler(reconciliation);
+        scheduler.setRetryDelay(QUIET_PERIOD_MS);
+        scheduler.requestRun("a", 7);
+
+        // nothing else is requested, the retry comes by itself
+        assertTrue(reconciliation.awaitReconciledThrough(7));
+        assertEquals(2, reconciliation.getRuns().size());
+        assertEquals(Collections.singleton("a"), reconciliation.getRuns().get(0));
+        assertNull(reconciliation.getRuns().get(1));
+    }
+
+    @Test
+    public void requestDuringRunGetsAFollowUp() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingReconciliation reconciliation = new RecordingReconciliation(2) {
+
+            @Override
+            public void reconcile(Set<String> changedDocIds) {
+                super.reconcile(changedDocIds);
+                if(started.getCount() > 0) {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        ReconciliationScheduler scheduler = newScheduler(reconciliation);
+        scheduler.requestRun("a");
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        scheduler.requestRun("b");
+        release.countDown();
+
+        assertTrue(reconciliation.await());
+        assertEquals(Collections.singleton("b"), reconciliation.getRuns().get(1));
+    }
+
+    @Test
+    public void skippedSequenceIsReportedWhenIdle() throws InterruptedException {
+        RecordingReconciliation reconciliation = new RecordingReconciliation(0);
+        ReconciliationScheduler scheduler = newScheduler(reconciliation);
+        scheduler.skippedThrough(4);
+
+        assertTrue(reconciliation.awaitReconciledThrough(4));
+        assertTrue(reconciliation.getRuns().isEmpty());
+    }
+
+    @Test
+    public void skippedSequenceWaitsForPendingRun() throws InterruptedException {
+        RecordingReconciliation reconciliation = new RecordingReconciliation(1);
+        ReconciliationScheduler scheduler = newScheduler(reconciliation);
+        scheduler.requestRun("a", 5);
+        scheduler.skippedThrough(6);
+
+        // not reported ahead of the change to "a"
+        assertTrue(reconciliation.awaitReconciledThrough(6));
+        assertEquals(1, reconciliation.getRuns().size());
+        assertEquals(6, reconciliation.getFirstReconciledThrough());
+    }
+
+    private ReconciliationScheduler newScheduler(RecordingReconciliation reconciliation) {
+        ReconciliationScheduler scheduler = new ReconciliationScheduler(executor, reconciliation);
+        scheduler.setQuietPeriod(QUIET_PERIOD_MS);
+        return scheduler;
+    }
+
+    private static class RecordingReconciliation implements ReconciliationScheduler.Reconciliation {
+
+        private final List<Set<String>> runs = new ArrayList<Set<String>>();
+        private final CountDownLatch expectedRuns;
+        private long reconciledThrough = -1;
+        private long firstReconciledThrough = -1;
+        int failuresLeft = 0;
+
+        RecordingReconciliation(int expectedRuns) {
+            this.expectedRuns = new CountDownLatch(expectedRuns);
+        }
+
+        @Override
+        public void reconcile(Set<String> changedDocIds) {
+            synchronized (this) {
+                runs.add(changedDocIds != null ? new HashSet<String>(changedDocIds) : null);
+            }
+            expectedRuns.countDown();
+            if(failuresLeft > 0) {
+                failuresLeft--;
+                throw new IllegalStateException("Failing on purpose");
+            }
+        }
+
+        @Override
+        public synchronized void reconciledThrough(long sequence) {
+            if(firstReconciledThrough < 0) {
+                firstReconciledThrough = sequence;
+            }
+            reconciledThrough = sequence;
+            notifyAll();
+        }
+
+        boolean await() throws InterruptedException {
+            return expectedRuns.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized boolean awaitReconciledThrough(long sequence) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while(reconciledThrough != sequence && System.currentTimeMillis() < deadline) {
+                wait(deadline - System.currentTimeMillis());
+            }
+            return reconciledThrough == sequence;
+        }
+
+        synchronized long getFirstReconciledThrough() {
+            return firstReconciledThrough;
+        }
+
+        synchronized List<Set<String>> getRuns() {
+            return new ArrayList<Set<String>>(runs);
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.couchbase.syncpoint.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.ektorp.CouchDbInstance;
+import org.ektorp.ReplicationCommand;
+import org.ektorp.impl.StdCouchDbInstance;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.syncpoint.benchmarks.InMemoryCouchServer;
+import com.couchbase.syncpoint.impl.ReplicationRegistry.Direction;
+
+/**
+ * Replications are started once, cancelled by owner, and forgotten when the server no
+ * longer runs them.
+ */
+public class ReplicationRegistryTest {
+
+    private static final String REMOTE = "http://syncpoint.invalid:5984/";
+
+    private CouchDbInstance server;
+    private ReplicationRegistry registry;
+
+    @Before
+    public void setUp() {
+        server = new StdCouchDbInstance(new InMemoryCouchServer());
+        registry = new ReplicationRegistry(server);
+    }
+
+    @Test
+    public void runningReplicationIsNotStartedAgain() {
+        assertTrue(registry.start("installation-1", Direction.PULL, REMOTE + "cloud-1", "channel-1", null));
+        assertFalse(registry.start("installation-1", Direction.PULL, REMOTE + "cloud-1", "channel-1", null));
+        assertTrue(registry.start("installation-1", Direction.PUSH, "channel-1", REMOTE + "cloud-1", null));
+
+        assertEquals(2, registry.getRunningCount());
+        assertTrue(registry.isRunning(Direction.PULL, REMOTE + "cloud-1", "channel-1", null));
+    }
+
+    @Test
+    public void cancelOwnerStopsOnlyItsReplications() {
+        startChannel("installation-1");
+        startChannel("installation-2");
+
+        registry.cancelOwner("installation-1");
+
+        assertFalse(registry.isOwnerRunning("installation-1"));
+        assertTrue(registry.isOwnerRunning("installation-2"));
+        // the server still runs the other owner's replications
+        assertTrue(registry.pruneStopped().isEmpty());
+        assertTrue(registry.isOwnerRunning("installation-2"));
+        // and no longer runs the cancelled ones, so they can be started again
+        assertTrue(registry.start("installation-1", Direction.PULL, REMOTE + "cloud-installation-1", "installation-1", null));
+    }
+
+    @Test
+    public void cancelOwnersExceptKeepsTheControlDatabase() {
+        startChannel("installation-1");
+        startChannel("installation-2");
+        registry.start(ReplicationRegistry.CONTROL_OWNER, Direction.PULL, REMOTE + "control", "sp_control", null);
+
+        registry.cancelOwnersExcept(Arrays.asList("installation-2"));
+
+        assertFalse(registry.isOwnerRunning("installation-1"));
+        assertTrue(registry.isOwnerRunning("installation-2"));
+        assertTrue(registry.isOwnerRunning(ReplicationRegistry.CONTROL_OWNER));
+    }
+
+    @Test
+    public void stoppedReplicationForgetsItsOwner() {
+        startChannel("installation-1");
+        startChannel("installation-2");
+        // the remote database went away, the server stops the pull on its own
+        server.replicate(new ReplicationCommand.Builder()
+        .source(REMOTE + "cloud-installation-1")
+        .target("installation-1")
+        .continuous(true)
+        .cancel(true)
+        .build());
+
+        assertEquals(Collections.singleton("installation-1"), registry.pruneStopped());
+        assertFalse(registry.isOwnerRunning("installation-1"));
+        assertTrue(registry.isOwnerRunning("installation-2"));
+        assertEquals(2, registry.getRunningCount());
+    }
+
+    private void startChannel(String owner) {
+        registry.start(owner, Direction.PULL, REMOTE + "cloud-" + owner, owner, null);
+        registry.start(owner, Direction.PUSH, owner, REMOTE + "cloud-" + owner, null);
+    }
+
+}
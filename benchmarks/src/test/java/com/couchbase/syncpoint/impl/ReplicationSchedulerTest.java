@@ -0,0 +1,156 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.couchbase.syncpoint.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.ektorp.ReplicationCommand;
+import org.ektorp.ReplicationStatus;
+import org.ektorp.impl.StdCouchDbInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.syncpoint.benchmarks.InMemoryCouchServer;
+
+/**
+ * Channel catch-ups are limited and run in priority order, and never hold up the control
+ * database.
+ */
+public class ReplicationSchedulerTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final String REMOTE = "http://syncpoint.invalid:5984/";
+
+    private BlockingServer server;
+    private ReplicationRegistry registry;
+    private ReplicationScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        server = new BlockingServer();
+        registry = new ReplicationRegistry(server);
+        scheduler = new ReplicationScheduler(server, registry, 2);
+    }
+
+    @After
+    public void tearDown() {
+        server.release.countDown();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void controlSyncDoesNotWaitForCatchUps() throws InterruptedException {
+        scheduler.scheduleChannelSync("installation-1", "one", REMOTE + "cloud-1", "channel-1");
+        scheduler.scheduleChannelSync("installation-2", "two", REMOTE + "cloud-2", "channel-2");
+        scheduler.scheduleChannelSync("installation-3", "three", REMOTE + "cloud-3", "channel-3");
+        assertTrue(server.awaitCatchUps(2));
+
+        scheduler.scheduleControlSync(REMOTE + "control", "sp_control");
+
+        assertTrue(awaitRunning(ReplicationRegistry.CONTROL_OWNER));
+        assertEquals(2, server.getCatchUps().size());
+    }
+
+    @Test
+    public void channelsCatchUpInPriorityOrder() throws InterruptedException {
+        scheduler.setMaxConcurrent(1);
+        scheduler.scheduleChannelSync("installation-0", "first", REMOTE + "cloud-0", "channel-0");
+        assertTrue(server.awaitCatchUps(1));
+        scheduler.setChannelPriority("urgent", 10);
+        scheduler.scheduleChannelSync("installation-1", "later", REMOTE + "cloud-1", "channel-1");
+        scheduler.scheduleChannelSync("installation-2", "urgent", REMOTE + "cloud-2", "channel-2");
+
+        server.release.countDown();
+        assertTrue(awaitRunning("installation-1"));
+        assertEquals(Arrays.asList("channel-0", "channel-2", "channel-1"), server.getCatchUps());
+    }
+
+    @Test
+    public void runningReplicationsAreNotScheduledAgain() throws InterruptedException {
+        server.release.countDown();
+        scheduler.scheduleChannelSync("installation-1", "one", REMOTE + "cloud-1", "channel-1");
+        assertTrue(awaitRunning("installation-1"));
+
+        scheduler.scheduleChannelSync("installation-1", "one", REMOTE + "cloud-1", "channel-1");
+        assertEquals(0, scheduler.getQueuedCount());
+        assertEquals(1, server.getCatchUps().size());
+        assertEquals(2, registry.getRunningCount());
+    }
+
+    private boolean awaitRunning(String owner) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(System.currentTimeMillis() < deadline) {
+            if(registry.isOwnerRunning(owner)) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    /**
+     * Holds every one-shot pull until released, like a long catch-up.
+     */
+    private static class BlockingServer extends StdCouchDbInstance {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        private final List<String> catchUps = new ArrayList<String>();
+
+        BlockingServer() {
+            super(new InMemoryCouchServer());
+        }
+
+        @Override
+        public ReplicationStatus replicate(ReplicationCommand command) {
+            if(!Boolean.TRUE.equals(command.continuous) && command.cancel == null) {
+                synchronized (this) {
+                    catchUps.add(command.target);
+                    notifyAll();
+                }
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.replicate(command);
+        }
+
+        synchronized List<String> getCatchUps() {
+            return new ArrayList<String>(catchUps);
+        }
+
+        synchronized boolean awaitCatchUps(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while(catchUps.size() < count && System.currentTimeMillis() < deadline) {
+                wait(deadline - System.currentTimeMillis());
+            }
+            return catchUps.size() >= count;
+        }
+    }
+
+}
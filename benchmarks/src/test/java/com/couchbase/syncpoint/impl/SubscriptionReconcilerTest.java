@@ -0,0 +1,141 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.couchbase.syncpoint.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.ektorp.CouchDbInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.syncpoint.benchmarks.ControlDatabaseFixture;
+import com.couchbase.syncpoint.model.SyncpointInstallation;
+import com.couchbase.syncpoint.model.SyncpointSessionHolder;
+import com.couchbase.syncpoint.model.SyncpointSubscription;
+
+/**
+ * Active subscriptions get installed, installations of ready channels get synced, and
+ * installations that go away stop syncing.
+ */
+public class SubscriptionReconcilerTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private ControlDatabaseFixture fixture;
+    private SyncpointSessionHolder sessionHolder;
+    private ControlModelCache cache;
+    private ReplicationRegistry registry;
+    private ReplicationScheduler replicationScheduler;
+    private SubscriptionReconciler reconciler;
+
+    @Before
+    public void setUp() {
+        fixture = new ControlDatabaseFixture();
+        fixture.createSession();
+        CouchDbInstance server = fixture.getServer();
+        cache = new ControlModelCache(server, fixture.getControlDatabase());
+        sessionHolder = SyncpointSessionHolder.getInstance(fixture.getPreferences(), server, fixture.getControlDatabase());
+        sessionHolder.setModelCache(cache);
+        registry = new ReplicationRegistry(server);
+        replicationScheduler = new ReplicationScheduler(server, registry, ReplicationScheduler.DEFAULT_MAX_CONCURRENT);
+        reconciler = new SubscriptionReconciler(sessionHolder, cache, replicationScheduler, ConnectorCache.forServer(server));
+    }
+
+    @After
+    public void tearDown() {
+        replicationScheduler.shutdown();
+    }
+
+    @Test
+    public void fullPassInstallsAndSyncsSubscriptions() throws InterruptedException {
+        fixture.seedChannels(3, 2, 0);
+        cache.load();
+
+        reconciler.reconcile(null);
+
+        List<SyncpointInstallation> installations = sessionHolder.getSession().getAllInstallations();
+        assertEquals(2, installations.size());
+        for (SyncpointInstallation installation : installations) {
+            assertTrue(awaitRunning(installation.getId(), true));
+        }
+    }
+
+    @Test
+    public void changedSubscriptionGetsInstalled() throws InterruptedException {
+        fixture.seedChannels(2, 1, 1);
+        cache.load();
+        reconciler.reconcile(null);
+        assertTrue(awaitRunning("installation-0", true));
+
+        SyncpointSubscription subscription = new SyncpointSubscription();
+        subscription.setId("subscription-1");
+        subscription.setType("subscription");
+        subscription.setOwnerId(ControlDatabaseFixture.OWNER_ID);
+        subscription.setChannelId("channel-1");
+        subscription.setState("active");
+        subscription.attach(fixture.getServer(), fixture.getControlDatabase(), cache);
+        subscription.create();
+        reconciler.reconcile(Collections.singleton("subscription-1"));
+
+        SyncpointInstallation installation = null;
+        for (SyncpointInstallation candidate : sessionHolder.getSession().getAllInstallations()) {
+            if("subscription-1".equals(candidate.getSubscriptionId())) {
+                installation = candidate;
+            }
+        }
+        assertNotNull(installation);
+        assertTrue(awaitRunning(installation.getId(), true));
+    }
+
+    @Test
+    public void deletedInstallationStopsSyncing() throws InterruptedException {
+        fixture.seedChannels(2, 2, 2);
+        cache.load();
+        reconciler.reconcile(null);
+        assertTrue(awaitRunning("installation-0", true));
+        assertTrue(awaitRunning("installation-1", true));
+
+        SyncpointInstallation installation = (SyncpointInstallation)cache.getModel("installation-1");
+        installation.delete();
+        reconciler.reconcile(Collections.singleton("installation-1"));
+
+        assertTrue(awaitRunning("installation-1", false));
+        assertTrue(registry.isOwnerRunning("installation-0"));
+        assertFalse(replicationScheduler.isSyncing("installation-1"));
+    }
+
+    private boolean awaitRunning(String owner, boolean running) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(System.currentTimeMillis() < deadline) {
+            if(registry.isOwnerRunning(owner) == running) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+}
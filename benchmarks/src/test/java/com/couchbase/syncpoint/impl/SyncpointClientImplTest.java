@@ -0,0 +1,194 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.couchbase.syncpoint.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.CouchDbInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.syncpoint.benchmarks.ControlDatabaseFixture;
+import com.couchbase.syncpoint.model.SyncpointChannel;
+import com.couchbase.syncpoint.model.SyncpointInstallation;
+import com.couchbase.syncpoint.model.SyncpointSubscription;
+import com.couchbase.syncpoint.platform.Clock;
+import com.couchbase.syncpoint.platform.DatabaseServerFactory;
+import com.couchbase.syncpoint.platform.jvm.JvmPlatform;
+import com.couchbase.syncpoint.platform.jvm.PropertiesFileStore;
+
+/**
+ * The client on the in-memory server: what app code sees while it opens and after it is
+ * shut down, and the merge of the channels made before pairing.
+ */
+public class SyncpointClientImplTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private ControlDatabaseFixture fixture;
+    private final CountDownLatch opening = new CountDownLatch(1);
+    private final CountDownLatch releaseOpening = new CountDownLatch(1);
+    private SyncpointClientImpl client;
+
+    @Before
+    public void setUp() {
+        fixture = new ControlDatabaseFixture();
+    }
+
+    @After
+    public void tearDown() {
+        releaseOpening.countDown();
+        if(client != null) {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void shutDownBeforeReadyIsNotReady() throws InterruptedException {
+        client = openHeldClient();
+        assertTrue(opening.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread app = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    client.getMyChannel("channel");
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        app.start();
+        client.shutdown();
+        releaseOpening.countDown();
+
+        assertFalse(client.isReady());
+        app.join(TIMEOUT_MS);
+        assertTrue(failure.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void interruptedLookupKeepsTheInterrupt() throws InterruptedException {
+        client = openHeldClient();
+        assertTrue(opening.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        Thread app = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    client.getMyChannel("channel");
+                } catch (Throwable e) {
+                    failure.set(e);
+                    interrupted.set(Thread.currentThread().isInterrupted());
+                }
+            }
+        });
+        app.start();
+        app.interrupt();
+        app.join(TIMEOUT_MS);
+
+        assertTrue(failure.get() instanceof IllegalStateException);
+        assertTrue(interrupted.get());
+    }
+
+    @Test
+    public void mergeLeavesReadyChannelsAlone() {
+        fixture.createSession();
+        fixture.seedChannels(3, 3, 3);
+        client = openClient();
+
+        assertTrue(client.mergeExistingChannels());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(fixture.getControlDatabase().contains("channel-" + i));
+            assertTrue(fixture.getControlDatabase().contains("subscription-" + i));
+            assertTrue(fixture.getControlDatabase().contains("installation-" + i));
+        }
+    }
+
+    @Test
+    public void mergeMovesChannelsFromBeforePairing() {
+        fixture.createSession();
+        fixture.seedUnpairedChannels(4, 4, 4, 2);
+        client = openClient();
+
+        assertTrue(client.mergeExistingChannels());
+        CouchDbConnector database = fixture.getControlDatabase();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(database.contains("channel-" + i));
+        }
+        // merged into channel-0 and channel-1 of the same name
+        for (int i = 0; i < 2; i++) {
+            assertFalse(database.contains("unpaired-channel-" + i));
+            SyncpointSubscription subscription = database.get(SyncpointSubscription.class, "unpaired-subscription-" + i);
+            assertEquals("channel-" + i, subscription.getChannelId());
+            assertEquals(ControlDatabaseFixture.OWNER_ID, subscription.getOwnerId());
+            SyncpointInstallation installation = database.get(SyncpointInstallation.class, "unpaired-installation-" + i);
+            assertEquals("channel-" + i, installation.getChannelId());
+            assertEquals(ControlDatabaseFixture.OWNER_ID, installation.getOwnerId());
+        }
+        // no channel of that name, moved over as it is
+        for (int i = 2; i < 4; i++) {
+            SyncpointChannel channel = database.get(SyncpointChannel.class, "unpaired-channel-" + i);
+            assertEquals(ControlDatabaseFixture.OWNER_ID, channel.getOwnerId());
+            assertEquals("new", channel.getState());
+        }
+    }
+
+    private SyncpointClientImpl openClient() {
+        SyncpointClientImpl client = SyncpointClientImpl.open(fixture.getPlatform(), fixture.getServer(), ControlDatabaseFixture.getRemoteServerURL(), ControlDatabaseFixture.APP_ID, null);
+        client.awaitReady();
+        return client;
+    }
+
+    /**
+     * Opens a client whose local server is only handed over once releaseOpening is counted
+     * down.
+     */
+    private SyncpointClientImpl openHeldClient() {
+        JvmPlatform platform = new JvmPlatform(new PropertiesFileStore(null), new DatabaseServerFactory() {
+
+            @Override
+            public CouchDbInstance createLocalServer() {
+                opening.countDown();
+                try {
+                    releaseOpening.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return fixture.getServer();
+            }
+        }, Clock.SYSTEM);
+        return SyncpointClientImpl.open(platform, ControlDatabaseFixture.getRemoteServerURL(), ControlDatabaseFixture.APP_ID, null);
+    }
+
+}
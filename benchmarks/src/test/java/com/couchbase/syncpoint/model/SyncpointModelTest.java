@@ -0,0 +1,98 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.couchbase.syncpoint.model;
+
+import static org.junit.Assert.assertEquals;
+
+import org.ektorp.CouchDbConnector;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.syncpoint.benchmarks.ControlDatabaseFixture;
+
+/**
+ * A write that conflicts is applied on top of the latest revision: both sides' changes are
+ * kept, and the server's wins where it owns the field.
+ */
+public class SyncpointModelTest {
+
+    private ControlDatabaseFixture fixture;
+    private CouchDbConnector database;
+
+    @Before
+    public void setUp() {
+        fixture = new ControlDatabaseFixture();
+        fixture.createSession();
+        fixture.seedChannels(1, 0, 0);
+        database = fixture.getControlDatabase();
+    }
+
+    @Test
+    public void changesOfBothSidesAreKept() {
+        SyncpointChannel server = load("channel-0");
+        SyncpointChannel mine = load("channel-0");
+        server.setCloudDatabase("cloud-moved");
+        server.update();
+
+        mine.setName("renamed");
+        mine.updateResolvingConflicts();
+
+        SyncpointChannel latest = load("channel-0");
+        assertEquals("renamed", latest.getName());
+        assertEquals("cloud-moved", latest.getCloudDatabase());
+        assertEquals(latest.getRevision(), mine.getRevision());
+    }
+
+    @Test
+    public void serverKeepsTheStateItChanged() {
+        SyncpointChannel server = load("channel-0");
+        SyncpointChannel mine = load("channel-0");
+        server.setState("error");
+        server.update();
+
+        mine.setState("new");
+        mine.setOwnerId("other-owner");
+        mine.updateResolvingConflicts();
+
+        SyncpointChannel latest = load("channel-0");
+        assertEquals("error", latest.getState());
+        assertEquals("other-owner", latest.getOwnerId());
+        assertEquals("error", mine.getState());
+    }
+
+    @Test
+    public void clientKeepsTheFieldsItOwns() {
+        SyncpointChannel server = load("channel-0");
+        SyncpointChannel mine = load("channel-0");
+        server.setName("server-name");
+        server.update();
+
+        mine.setName("client-name");
+        mine.updateResolvingConflicts();
+
+        assertEquals("client-name", load("channel-0").getName());
+    }
+
+    private SyncpointChannel load(String docId) {
+        SyncpointChannel channel = database.get(SyncpointChannel.class, docId);
+        channel.attach(fixture.getServer(), database);
+        return channel;
+    }
+
+}
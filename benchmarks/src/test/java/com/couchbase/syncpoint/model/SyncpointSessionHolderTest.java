@@ -0,0 +1,80 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.couchbase.syncpoint.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.CouchDbInstance;
+import org.ektorp.impl.StdCouchDbInstance;
+import org.junit.Test;
+
+import com.couchbase.syncpoint.benchmarks.ControlDatabaseFixture;
+import com.couchbase.syncpoint.benchmarks.InMemoryCouchServer;
+import com.couchbase.syncpoint.platform.KeyValueStore;
+import com.couchbase.syncpoint.platform.jvm.PropertiesFileStore;
+
+/**
+ * Several clients in one process each get the session of their own control database.
+ */
+public class SyncpointSessionHolderTest {
+
+    private static final String CONTROL_DATABASE = "sp_control";
+
+    @Test
+    public void sameServerAndStoreShareTheHolder() {
+        CouchDbInstance server = new StdCouchDbInstance(new InMemoryCouchServer());
+        KeyValueStore preferences = new PropertiesFileStore(null);
+        CouchDbConnector database = server.createConnector(CONTROL_DATABASE, true);
+
+        assertSame(SyncpointSessionHolder.getInstance(preferences, server, database),
+                SyncpointSessionHolder.getInstance(preferences, server, server.createConnector(CONTROL_DATABASE, false)));
+    }
+
+    @Test
+    public void otherServerWithTheSameDatabaseNameGetsItsOwnSession() {
+        CouchDbInstance first = new StdCouchDbInstance(new InMemoryCouchServer());
+        CouchDbInstance second = new StdCouchDbInstance(new InMemoryCouchServer());
+        KeyValueStore firstPreferences = new PropertiesFileStore(null);
+        KeyValueStore secondPreferences = new PropertiesFileStore(null);
+        CouchDbConnector firstDatabase = first.createConnector(CONTROL_DATABASE, true);
+        CouchDbConnector secondDatabase = second.createConnector(CONTROL_DATABASE, true);
+
+        SyncpointSession firstSession = SyncpointSession.makeSessionInDatabase(firstPreferences, first, firstDatabase, "first", ControlDatabaseFixture.getRemoteServerURL());
+        SyncpointSession secondSession = SyncpointSession.makeSessionInDatabase(secondPreferences, second, secondDatabase, "second", ControlDatabaseFixture.getRemoteServerURL());
+
+        SyncpointSessionHolder firstHolder = SyncpointSessionHolder.getInstance(firstPreferences, first, firstDatabase);
+        SyncpointSessionHolder secondHolder = SyncpointSessionHolder.getInstance(secondPreferences, second, secondDatabase);
+        assertNotSame(firstHolder, secondHolder);
+        assertEquals(firstSession.getId(), firstHolder.getSessionId());
+        assertEquals(secondSession.getId(), secondHolder.getSessionId());
+    }
+
+    @Test
+    public void otherStoreOnTheSameServerGetsItsOwnHolder() {
+        CouchDbInstance server = new StdCouchDbInstance(new InMemoryCouchServer());
+        CouchDbConnector database = server.createConnector(CONTROL_DATABASE, true);
+
+        assertNotSame(SyncpointSessionHolder.getInstance(new PropertiesFileStore(null), server, database),
+                SyncpointSessionHolder.getInstance(new PropertiesFileStore(null), server, database));
+    }
+
+}
@@ -17,13 +17,95 @@
 
 package com.couchbase.syncpoint;
 
+import java.util.concurrent.Executor;
+
 import com.couchbase.syncpoint.model.SyncpointChannel;
 
 
 public interface SyncpointClient {
 
+    /**
+     * Told on the main thread once a client opened in the background is ready to use.
+     */
+    interface ReadyListener {
+
+        void clientReady(SyncpointClient client);
+
+        void clientFailed(Throwable error);
+
+    }
+
+    /**
+     * Told on the main thread how the first sync of the control database after pairing is
+     * going.  The counts include what arrived before the app was last stopped.
+     */
+    interface InitialSyncListener {
+
+        void initialSyncProgress(long docsTransferred, long bytesTransferred);
+
+        void initialSyncFinished();
+
+        /**
+         * The sync stopped with an error, e.g. because the server can't be reached.  It is
+         * tried again after a while, continuing from what arrived so far.
+         */
+        void initialSyncFailed(Throwable error);
+
+    }
+
+    /**
+     * Told on the main thread about the channel asked for with getMyChannel(String, ChannelListener).
+     */
+    interface ChannelListener {
+
+        void channelReady(SyncpointChannel channel);
+
+        void channelFailed(Throwable error);
+
+    }
+
+    SyncpointState getState();
+
+    /**
+     * The client's state, with its transition history and the time spent in each state.
+     */
+    SyncpointStateMachine getStateMachine();
+
+    /**
+     * Tells the listener about every state change from now on, on the given executor.
+     */
+    void addStateListener(SyncpointStateMachine.Listener listener, Executor executor);
+
+    void removeStateListener(SyncpointStateMachine.Listener listener);
+
     void pairSession(String pairingType, String pairingToken);
 
+    /**
+     * Returns the channel of this user with the given name, making it if needed.  Blocks until
+     * the client is ready and the lookup has had its turn on the control thread, which may be
+     * busy with reconciliation or requests to the server, so it must not be called on the main
+     * thread; use getMyChannel(String, ChannelListener) there.
+     */
     SyncpointChannel getMyChannel(String channelName);
 
+    /**
+     * Like getMyChannel(String) without blocking: the lookup is queued until the client is
+     * ready, and the listener is told the result on the main thread.
+     */
+    void getMyChannel(String channelName, ChannelListener listener);
+
+    /**
+     * Channels with a higher priority are synced first, the default is 0.
+     */
+    void setChannelPriority(String channelName, int priority);
+
+    void addInitialSyncListener(InitialSyncListener listener);
+
+    void removeInitialSyncListener(InitialSyncListener listener);
+
+    /**
+     * The process-wide metrics of the control plane.
+     */
+    SyncpointMetrics getMetrics();
+
 }
@@ -0,0 +1,288 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Counters and latency histograms for the control plane, shared by everything in the process.
+ *
+ * Recording is cheap enough to leave on: a counter is one atomic add, a histogram sample is
+ * three plus a compare-and-set for the maximum.  Histograms keep power-of-two buckets, so
+ * their percentiles are upper bounds within a factor of two.
+ *
+ * Spans measure the time between two places in the code that don't share a stack, e.g. from
+ * the pairing request to the session being paired: beginSpan() notes the time, and the first
+ * endSpan() after it records the elapsed milliseconds in the histogram of the same name.
+ * Queries and reconciliation runs are mostly well under a millisecond, so their histograms
+ * record microseconds; the unit is the suffix of each histogram's name.
+ */
+public class SyncpointMetrics {
+
+    // names used by the client
+    public static final String MODEL_QUERIES = "models.query.calls";
+    public static final String MODEL_QUERY_ROWS_SCANNED = "models.query.rows_scanned";
+    public static final String MODEL_QUERY_ROWS_MATCHED = "models.query.rows_matched";
+    public static final String MODEL_QUERY_US = "models.query.duration_us";
+    public static final String MODEL_CACHE_LOOKUPS = "models.cache.calls";
+    public static final String MODEL_CACHE_ROWS_MATCHED = "models.cache.rows_matched";
+    public static final String MODEL_UPDATE_CONFLICTS = "models.update.conflicts";
+    public static final String MODEL_UPDATE_CONFLICT_RETRIES = "models.update.conflict_retries";
+    public static final String RECONCILIATION_REQUESTS = "reconciliation.requests";
+    public static final String RECONCILIATION_RUNS = "reconciliation.runs";
+    public static final String RECONCILIATION_MERGED = "reconciliation.merged";
+    public static final String RECONCILIATION_US = "reconciliation.duration_us";
+    public static final String REPLICATIONS_STARTED = "replications.started";
+    public static final String REPLICATIONS_RUNNING = "replications.running";
+    public static final String REPLICATIONS_DEDUPLICATED = "replications.deduplicated";
+    public static final String REPLICATIONS_CANCELLED = "replications.cancelled";
+    public static final String PAIRING_MS = "pairing.duration_ms";
+    public static final String CONTROL_SYNCED_TO_FIRST_CHANNEL_SYNC_MS = "control_synced_to_first_channel_sync.duration_ms";
+    public static final String CONTROL_FEED_EVENTS = "control_feed.events";
+    public static final String CONTROL_FEED_ECHOES = "control_feed.echoes_skipped";
+
+    public interface Gauge {
+
+        long getValue();
+
+    }
+
+    public static class Counter {
+
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        void reset() {
+            value.set(0);
+        }
+
+    }
+
+    public static class Histogram {
+
+        private static final int BUCKETS = 64;
+
+        // bucket i holds the values v with 2^(i-1) <= v < 2^i, bucket 0 holds 0
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if(value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax;
+            while((currentMax = max.get()) < value && !max.compareAndSet(currentMax, value)) {
+                // another thread raised it, check again
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns an upper bound of the given percentile (0 to 100) of the recorded values.
+         */
+        public long getPercentile(double percentile) {
+            long total = count.get();
+            if(total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if(seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+
+        Map<String, Long> snapshot() {
+            Map<String, Long> result = new LinkedHashMap<String, Long>();
+            long total = count.get();
+            result.put("count", total);
+            result.put("sum", sum.get());
+            result.put("mean", total > 0 ? sum.get() / total : 0);
+            result.put("p50", getPercentile(50));
+            result.put("p90", getPercentile(90));
+            result.put("p99", getPercentile(99));
+            result.put("max", max.get());
+            return result;
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+    }
+
+    private static final SyncpointMetrics instance = new SyncpointMetrics();
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private final ConcurrentMap<String, Long> spanStarts = new ConcurrentHashMap<String, Long>();
+
+    public static SyncpointMetrics getInstance() {
+        return instance;
+    }
+
+    SyncpointMetrics() {
+
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if(counter == null) {
+            counters.putIfAbsent(name, new Counter());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if(histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * Reports the value of the gauge under the given name, replacing any gauge registered
+     * under it before.
+     */
+    public void registerGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void unregisterGauge(String name, Gauge gauge) {
+        gauges.remove(name, gauge);
+    }
+
+    /**
+     * Starts timing the named span, unless it was already started.
+     */
+    public void beginSpan(String name) {
+        spanStarts.putIfAbsent(name, System.nanoTime());
+    }
+
+    /**
+     * Records the milliseconds since beginSpan() in the histogram of the same name.  Does
+     * nothing if the span was not started.
+     */
+    public void endSpan(String name) {
+        Long startedAt = spanStarts.remove(name);
+        if(startedAt != null) {
+            histogram(name).record((System.nanoTime() - startedAt) / 1000000);
+        }
+    }
+
+    /**
+     * Forgets that the named span was started, e.g. because what it measures failed.
+     */
+    public void cancelSpan(String name) {
+        spanStarts.remove(name);
+    }
+
+    /**
+     * Returns the current values by name: a Long for counters and gauges, and a map of count,
+     * sum, mean, p50, p90, p99 and max for histograms.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new TreeMap<String, Object>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getValue());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return result;
+    }
+
+    public String toJson() {
+        try {
+            return objectMapper.writeValueAsString(snapshot());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sets every counter and histogram back to zero, e.g. between two runs being compared.
+     */
+    public void reset() {
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        spanStarts.clear();
+    }
+
+}
@@ -18,5 +18,5 @@
 package com.couchbase.syncpoint;
 
 public enum SyncpointState {
-    HAS_ERROR, UNAUTHENTICATED, AUTHENTICATING, ACTIVATING, UPDATING_CONTROL_DATABASE, READY
+    HAS_ERROR, INITIALIZING, UNAUTHENTICATED, AUTHENTICATING, ACTIVATING, UPDATING_CONTROL_DATABASE, READY
 }
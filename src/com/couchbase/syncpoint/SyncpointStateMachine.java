@@ -0,0 +1,240 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import com.couchbase.syncpoint.impl.SyncpointClientImpl;
+import com.couchbase.syncpoint.platform.Clock;
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * The states a client goes through, and how long it spent in each.
+ *
+ * A new session goes UNAUTHENTICATED -> AUTHENTICATING -> ACTIVATING ->
+ * UPDATING_CONTROL_DATABASE -> READY; a restored paired session goes from INITIALIZING
+ * straight to ACTIVATING, and to READY once its control database is being synced.  Any
+ * state can go to HAS_ERROR, from which pairing or the initial sync of the control database
+ * can be tried again.  Transitions that are not part of this are logged and ignored.
+ *
+ * Every transition is timestamped and handed to the listeners on the executor each of them
+ * was added with, so a slow listener never holds up the client.
+ */
+public class SyncpointStateMachine {
+
+    public static final int HISTORY_SIZE = 32;
+
+    public interface Listener {
+
+        void stateChanged(Transition transition);
+
+    }
+
+    public static class Transition {
+
+        private final SyncpointState from;
+        private final SyncpointState to;
+        private final long timestamp;
+        private final long previousDurationMs;
+
+        Transition(SyncpointState from, SyncpointState to, long timestamp, long previousDurationMs) {
+            this.from = from;
+            this.to = to;
+            this.timestamp = timestamp;
+            this.previousDurationMs = previousDurationMs;
+        }
+
+        public SyncpointState getFrom() {
+            return from;
+        }
+
+        public SyncpointState getTo() {
+            return to;
+        }
+
+        /**
+         * When the transition happened, in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * How long the client was in the state it left.
+         */
+        public long getPreviousDurationMs() {
+            return previousDurationMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s -> %s after %d ms", from, to, previousDurationMs);
+        }
+
+    }
+
+    private static final Map<SyncpointState, EnumSet<SyncpointState>> allowed = new EnumMap<SyncpointState, EnumSet<SyncpointState>>(SyncpointState.class);
+
+    static {
+        allowed.put(SyncpointState.INITIALIZING, EnumSet.of(SyncpointState.UNAUTHENTICATED, SyncpointState.ACTIVATING));
+        allowed.put(SyncpointState.UNAUTHENTICATED, EnumSet.of(SyncpointState.AUTHENTICATING));
+        allowed.put(SyncpointState.AUTHENTICATING, EnumSet.of(SyncpointState.UNAUTHENTICATED, SyncpointState.ACTIVATING));
+        allowed.put(SyncpointState.ACTIVATING, EnumSet.of(SyncpointState.UPDATING_CONTROL_DATABASE, SyncpointState.READY));
+        allowed.put(SyncpointState.UPDATING_CONTROL_DATABASE, EnumSet.of(SyncpointState.READY));
+        allowed.put(SyncpointState.READY, EnumSet.noneOf(SyncpointState.class));
+        allowed.put(SyncpointState.HAS_ERROR, EnumSet.of(SyncpointState.UNAUTHENTICATED, SyncpointState.AUTHENTICATING, SyncpointState.ACTIVATING,
+                SyncpointState.UPDATING_CONTROL_DATABASE));
+        for (EnumSet<SyncpointState> targets : allowed.values()) {
+            targets.add(SyncpointState.HAS_ERROR);
+        }
+    }
+
+    private final List<Registration> listeners = new CopyOnWriteArrayList<Registration>();
+    private final LinkedList<Transition> history = new LinkedList<Transition>();
+    private final Map<SyncpointState, Long> timeInState = new EnumMap<SyncpointState, Long>(SyncpointState.class);
+
+    private final Clock clock;
+    private SyncpointState state;
+    private long enteredAt;
+    private long enteredAtNanos;
+
+    public SyncpointStateMachine(SyncpointState initialState) {
+        this(initialState, Clock.SYSTEM);
+    }
+
+    public SyncpointStateMachine(SyncpointState initialState, Clock clock) {
+        this.clock = clock;
+        this.state = initialState;
+        this.enteredAt = clock.currentTimeMillis();
+        this.enteredAtNanos = clock.nanoTime();
+    }
+
+    public synchronized SyncpointState getState() {
+        return state;
+    }
+
+    /**
+     * When the current state was entered, in milliseconds since the epoch.
+     */
+    public synchronized long getEnteredAt() {
+        return enteredAt;
+    }
+
+    public synchronized boolean isIn(SyncpointState... states) {
+        for (SyncpointState candidate : states) {
+            if(state == candidate) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves to the given state and tells the listeners.
+     *
+     * @return false if the client was already in that state or can't get there from the
+     * current one
+     */
+    public boolean transitionTo(SyncpointState to) {
+        Transition transition;
+        synchronized (this) {
+            if(state == to) {
+                return false;
+            }
+            if(!allowed.get(state).contains(to)) {
+                SyncpointLog.w(SyncpointClientImpl.TAG, String.format("Ignoring state change from %s to %s", state, to));
+                return false;
+            }
+            long nowNanos = clock.nanoTime();
+            long duration = (nowNanos - enteredAtNanos) / 1000000;
+            Long total = timeInState.get(state);
+            timeInState.put(state, (total != null ? total : 0) + duration);
+
+            transition = new Transition(state, to, clock.currentTimeMillis(), duration);
+            history.add(transition);
+            if(history.size() > HISTORY_SIZE) {
+                history.removeFirst();
+            }
+            state = to;
+            enteredAt = transition.getTimestamp();
+            enteredAtNanos = nowNanos;
+        }
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("State %s", transition));
+        for (final Registration registration : listeners) {
+            final Transition notified = transition;
+            registration.executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    registration.listener.stateChanged(notified);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Returns the total time spent in the given state so far, including the current stay.
+     */
+    public synchronized long getTimeInState(SyncpointState phase) {
+        Long total = timeInState.get(phase);
+        long result = total != null ? total : 0;
+        if(phase == state) {
+            result += (clock.nanoTime() - enteredAtNanos) / 1000000;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the most recent transitions, oldest first.
+     */
+    public synchronized List<Transition> getHistory() {
+        return new ArrayList<Transition>(history);
+    }
+
+    public void addListener(Listener listener, Executor executor) {
+        listeners.add(new Registration(listener, executor));
+    }
+
+    public void removeListener(Listener listener) {
+        for (Registration registration : listeners) {
+            if(registration.listener == listener) {
+                listeners.remove(registration);
+            }
+        }
+    }
+
+    private static class Registration {
+
+        final Listener listener;
+        final Executor executor;
+
+        Registration(Listener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+}
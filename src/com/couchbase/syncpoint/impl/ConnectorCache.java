@@ -0,0 +1,155 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.CouchDbInstance;
+import org.ektorp.DbPath;
+
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * Hands out connectors to the databases of a server, keeping the most recently used ones.
+ *
+ * Channel databases are only created when something really needs them: open() creates a
+ * database the first time it is asked for, and exists() answers without creating anything.
+ * Listeners are told when open() creates a database, so work that was put off until then
+ * (e.g. deferred channel sync) can start.
+ */
+public class ConnectorCache {
+
+    public static final int DEFAULT_CAPACITY = 16;
+
+    public interface Listener {
+
+        void databaseCreated(String databaseName);
+
+    }
+
+    private static final Map<CouchDbInstance, ConnectorCache> caches = new WeakHashMap<CouchDbInstance, ConnectorCache>();
+
+    private final CouchDbInstance server;
+    private final LinkedHashMap<String, CouchDbConnector> connectors;
+    private final Set<String> knownDatabases = new HashSet<String>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private int capacity = DEFAULT_CAPACITY;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /**
+     * Returns the cache for the given server, making it on first use.
+     */
+    public static ConnectorCache forServer(CouchDbInstance server) {
+        synchronized (caches) {
+            ConnectorCache cache = caches.get(server);
+            if(cache == null) {
+                cache = new ConnectorCache(server);
+                caches.put(server, cache);
+            }
+            return cache;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private ConnectorCache(CouchDbInstance server) {
+        this.server = server;
+        this.connectors = new LinkedHashMap<String, CouchDbConnector>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CouchDbConnector> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns a connector to the named database, creating the database if it doesn't exist.
+     */
+    public CouchDbConnector open(String databaseName) {
+        boolean created = false;
+        CouchDbConnector connector;
+        synchronized (this) {
+            connector = connectors.get(databaseName);
+            if(connector != null && knownDatabases.contains(databaseName)) {
+                hitCount++;
+                return connector;
+            }
+            missCount++;
+            if(!knownDatabases.contains(databaseName) && !server.checkIfDbExists(new DbPath(databaseName))) {
+                SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Creating database %s on first use", databaseName));
+                server.createDatabase(databaseName);
+                created = true;
+            }
+            knownDatabases.add(databaseName);
+            if(connector == null) {
+                connector = server.createConnector(databaseName, false);
+                connectors.put(databaseName, connector);
+            }
+        }
+        if(created) {
+            for (Listener listener : listeners) {
+                listener.databaseCreated(databaseName);
+            }
+        }
+        return connector;
+    }
+
+    /**
+     * Tells whether the named database has been created, without creating it.
+     */
+    public synchronized boolean exists(String databaseName) {
+        if(knownDatabases.contains(databaseName)) {
+            return true;
+        }
+        if(server.checkIfDbExists(new DbPath(databaseName))) {
+            knownDatabases.add(databaseName);
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+}
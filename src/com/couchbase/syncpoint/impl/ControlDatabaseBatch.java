@@ -0,0 +1,219 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ektorp.BulkDeleteDocument;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.UpdateConflictException;
+
+import com.couchbase.syncpoint.model.SyncpointModel;
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * Collects changes to control database models and writes them in one _bulk_docs request.
+ *
+ * TouchDB runs the whole request in one transaction, so a batch costs a single commit
+ * instead of one per document.  Each document still succeeds or fails on its own.  Updates
+ * that failed with a conflict are rebased on the latest revision and written again, as in
+ * SyncpointModel.updateResolvingConflicts(); the documents that still could not be written
+ * are returned by commit().
+ *
+ * A batch can also be used as a unit of work: between begin() and end(), SyncpointModel's
+ * update() and delete() on the batch's database add to the batch instead of writing, so a
+ * model changed several times is written once, when the batch is committed.
+ *
+ * <pre>
+ * ControlDatabaseBatch batch = ControlDatabaseBatch.begin(database, cache);
+ * try {
+ *     ...
+ *     batch.commit();
+ * } finally {
+ *     batch.end();
+ * }
+ * </pre>
+ */
+public class ControlDatabaseBatch {
+
+    private static final ThreadLocal<ControlDatabaseBatch> currentBatch = new ThreadLocal<ControlDatabaseBatch>();
+
+    private final CouchDbConnector database;
+    private final ControlModelCache cache;
+
+    // the batch that was current on this thread when this one began, if any
+    private ControlDatabaseBatch enclosing;
+    private boolean active = false;
+
+    // doc id -> model to save, or the model to delete
+    private final Map<String, SyncpointModel> updates = new LinkedHashMap<String, SyncpointModel>();
+    private final Map<String, SyncpointModel> deletes = new LinkedHashMap<String, SyncpointModel>();
+
+    public ControlDatabaseBatch(CouchDbConnector database, ControlModelCache cache) {
+        this.database = database;
+        this.cache = cache;
+    }
+
+    /**
+     * Starts a batch that collects the model writes made on this thread to the given database
+     * until end() is called.
+     */
+    public static ControlDatabaseBatch begin(CouchDbConnector database, ControlModelCache cache) {
+        ControlDatabaseBatch batch = new ControlDatabaseBatch(database, cache);
+        batch.enclosing = currentBatch.get();
+        batch.active = true;
+        currentBatch.set(batch);
+        return batch;
+    }
+
+    /**
+     * Returns the batch collecting writes to the given database on this thread, or null if
+     * models should write right away.
+     */
+    public static ControlDatabaseBatch current(CouchDbConnector database) {
+        for (ControlDatabaseBatch batch = currentBatch.get(); batch != null; batch = batch.enclosing) {
+            if(batch.database == database) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops collecting writes.  Anything not committed yet is dropped, so call this from a
+     * finally block after commit().
+     */
+    public void end() {
+        if(!active) {
+            return;
+        }
+        active = false;
+        if(size() > 0) {
+            SyncpointLog.w(SyncpointClientImpl.TAG, String.format("Dropping %d uncommitted writes to %s", size(), database.getDatabaseName()));
+            updates.clear();
+            deletes.clear();
+        }
+        if(currentBatch.get() == this) {
+            if(enclosing != null) {
+                currentBatch.set(enclosing);
+            } else {
+                currentBatch.remove();
+            }
+        }
+    }
+
+    public void update(SyncpointModel model) {
+        if(!deletes.containsKey(model.getId())) {
+            updates.put(model.getId(), model);
+        }
+    }
+
+    public void delete(SyncpointModel model) {
+        updates.remove(model.getId());
+        deletes.put(model.getId(), model);
+    }
+
+    public int size() {
+        return updates.size() + deletes.size();
+    }
+
+    /**
+     * Writes everything collected so far.
+     *
+     * @return the results for the documents that could not be written
+     */
+    public List<DocumentOperationResult> commit() {
+        if(size() == 0) {
+            return new ArrayList<DocumentOperationResult>();
+        }
+        List<Object> docs = new ArrayList<Object>(size());
+        docs.addAll(updates.values());
+        Map<String, BulkDeleteDocument> deleteDocs = new LinkedHashMap<String, BulkDeleteDocument>();
+        for (SyncpointModel model : deletes.values()) {
+            BulkDeleteDocument deleteDoc = BulkDeleteDocument.of(model);
+            deleteDocs.put(model.getId(), deleteDoc);
+            docs.add(deleteDoc);
+        }
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Writing %d updates and %d deletes to %s", updates.size(), deletes.size(), database.getDatabaseName()));
+
+        List<DocumentOperationResult> failures = new ArrayList<DocumentOperationResult>();
+        Set<String> failedIds = new HashSet<String>();
+        List<SyncpointModel> conflicted = new ArrayList<SyncpointModel>();
+        boolean written = false;
+        try {
+            for (DocumentOperationResult result : database.executeBulk(docs)) {
+                if(result.isErroneous()) {
+                    SyncpointLog.e(SyncpointClientImpl.TAG, String.format("Unable to write %s: %s (%s)", result.getId(), result.getError(), result.getReason()));
+                    failures.add(result);
+                    failedIds.add(result.getId());
+                    if("conflict".equals(result.getError()) && updates.containsKey(result.getId())) {
+                        conflicted.add(updates.get(result.getId()));
+                    }
+                }
+            }
+            written = true;
+        } finally {
+            // executeBulk sets the new revision on each document it wrote; the others are out
+            // of date now, so have the cache read them again
+            for (SyncpointModel model : updates.values()) {
+                if(written && !failedIds.contains(model.getId())) {
+                    model.markClean();
+                    if(cache != null) {
+                        cache.modelSaved(model);
+                    }
+                } else if(cache != null) {
+                    cache.documentChanged(model.getId(), null, false);
+                }
+            }
+            for (SyncpointModel model : deletes.values()) {
+                if(cache == null) {
+                    continue;
+                }
+                if(written && !failedIds.contains(model.getId())) {
+                    cache.modelDeleted(model, deleteDocs.get(model.getId()).getRevision());
+                } else {
+                    cache.documentChanged(model.getId(), null, false);
+                }
+            }
+            updates.clear();
+            deletes.clear();
+        }
+
+        for (SyncpointModel model : conflicted) {
+            try {
+                model.resolveConflictAndUpdate();
+            } catch (UpdateConflictException e) {
+                continue;
+            }
+            for (Iterator<DocumentOperationResult> it = failures.iterator(); it.hasNext();) {
+                if(it.next().getId().equals(model.getId())) {
+                    it.remove();
+                }
+            }
+        }
+        return failures;
+    }
+
+}
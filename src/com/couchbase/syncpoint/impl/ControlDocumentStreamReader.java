@@ -0,0 +1,177 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.util.TokenBuffer;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.CouchDbInstance;
+
+import com.couchbase.syncpoint.model.SyncpointModel;
+
+/**
+ * Reads the rows of an include_docs view response straight off the stream.
+ *
+ * Each doc is checked field by field against the expected values (type first in practice,
+ * since that is what the control documents are filtered on).  As soon as a field does not
+ * match, the rest of the doc is skipped without being buffered.  Only matching docs are
+ * deserialized into models.
+ */
+public class ControlDocumentStreamReader<T extends SyncpointModel> {
+
+    private final ObjectMapper objectMapper;
+    private final CouchDbInstance server;
+    private final CouchDbConnector database;
+    private final Class<T> clazz;
+    private final String[] fields;
+    private final String[] values;
+
+    private int rowsScanned;
+    private int rowsMatched;
+
+    public ControlDocumentStreamReader(ObjectMapper objectMapper, CouchDbInstance server, CouchDbConnector database, Class<T> clazz, String[] fields, String[] values) {
+        this.objectMapper = objectMapper;
+        this.server = server;
+        this.database = database;
+        this.clazz = clazz;
+        this.fields = fields;
+        this.values = values;
+    }
+
+    public int getRowsScanned() {
+        return rowsScanned;
+    }
+
+    public int getRowsMatched() {
+        return rowsMatched;
+    }
+
+    public List<T> read(InputStream in) throws IOException {
+        List<T> results = new ArrayList<T>();
+        JsonParser parser = objectMapper.getJsonFactory().createJsonParser(in);
+        try {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected view result object");
+            }
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if("rows".equals(name) && token == JsonToken.START_ARRAY) {
+                    while(parser.nextToken() == JsonToken.START_OBJECT) {
+                        readRow(parser, results);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return results;
+    }
+
+    private void readRow(JsonParser parser, List<T> results) throws IOException {
+        rowsScanned++;
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if("doc".equals(name) && token == JsonToken.START_OBJECT) {
+                T model = readDoc(parser);
+                if(model != null) {
+                    rowsMatched++;
+                    results.add(model);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Called with the parser on the doc's START_OBJECT, returns with it on the matching
+     * END_OBJECT.  Returns null if the doc does not match.
+     */
+    private T readDoc(JsonParser parser) throws IOException {
+        TokenBuffer buffer = new TokenBuffer(objectMapper);
+        buffer.writeStartObject();
+        boolean[] seen = new boolean[fields.length];
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            int index = indexOfField(name);
+            if(index < 0) {
+                buffer.copyCurrentStructure(parser);
+                continue;
+            }
+            JsonToken token = parser.nextToken();
+            if(!valueMatches(parser, token, values[index])) {
+                parser.skipChildren();
+                skipRemainingFields(parser);
+                return null;
+            }
+            seen[index] = true;
+            buffer.writeFieldName(name);
+            buffer.copyCurrentStructure(parser);
+        }
+        buffer.writeEndObject();
+
+        for(int i = 0; i < fields.length; i++) {
+            if(!seen[i] && values[i] != null) {
+                return null;
+            }
+        }
+
+        JsonParser docParser = buffer.asParser(objectMapper);
+        T model = objectMapper.readValue(docParser, clazz);
+        model.attach(server, database);
+        return model;
+    }
+
+    private int indexOfField(String name) {
+        for(int i = 0; i < fields.length; i++) {
+            if(fields[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean valueMatches(JsonParser parser, JsonToken token, String value) throws IOException {
+        if(token == JsonToken.VALUE_NULL) {
+            return value == null;
+        }
+        if(token.isScalarValue()) {
+            return value != null && value.equals(parser.getText());
+        }
+        return false;
+    }
+
+    private static void skipRemainingFields(JsonParser parser) throws IOException {
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+
+}
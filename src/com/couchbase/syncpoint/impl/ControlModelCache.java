@@ -0,0 +1,345 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonNode;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.CouchDbInstance;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.ektorp.ViewResult.Row;
+
+import com.couchbase.syncpoint.SyncpointMetrics;
+import com.couchbase.syncpoint.model.SyncpointChannel;
+import com.couchbase.syncpoint.model.SyncpointInstallation;
+import com.couchbase.syncpoint.model.SyncpointModel;
+import com.couchbase.syncpoint.model.SyncpointSubscription;
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * In-memory copy of the channel, subscription and installation documents in the control
+ * database.
+ *
+ * The cache is loaded once with {@link #load()}, which returns the update sequence the
+ * changes feed should be started from.  Every change seen on the feed is passed to
+ * {@link #documentChanged(String, String, boolean)}, which only marks the document as stale;
+ * stale documents are re-read in a single request the next time the cache is queried.
+ * Until it is loaded the cache answers nothing and callers query the database directly.
+ *
+ * The cached models are never handed out.  Every lookup returns copies, so callers on any
+ * thread can change what they got without affecting the cache or each other, and a write
+ * that fails leaves the cache as it was.  Saved models are copied into the cache too.
+ */
+public class ControlModelCache {
+
+    static final Map<String, Class<? extends SyncpointModel>> MODEL_TYPES = new LinkedHashMap<String, Class<? extends SyncpointModel>>();
+    static {
+        MODEL_TYPES.put("channel", SyncpointChannel.class);
+        MODEL_TYPES.put("subscription", SyncpointSubscription.class);
+        MODEL_TYPES.put("installation", SyncpointInstallation.class);
+    }
+
+    private final CouchDbInstance server;
+    private final CouchDbConnector database;
+
+    private final Map<String, IndexEntry> modelsById = new HashMap<String, IndexEntry>();
+    private final Map<String, Map<String, SyncpointModel>> modelsByType = new HashMap<String, Map<String, SyncpointModel>>();
+    private final Map<String, Map<String, SyncpointModel>> modelsByOwner = new HashMap<String, Map<String, SyncpointModel>>();
+    private final Map<String, Map<String, SyncpointModel>> modelsByChannel = new HashMap<String, Map<String, SyncpointModel>>();
+    private final Set<String> staleIds = new HashSet<String>();
+
+    // "id rev" of the revisions this client wrote itself, oldest first
+    @SuppressWarnings("serial")
+    private final Map<String, Boolean> localWrites = new LinkedHashMap<String, Boolean>() {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_LOCAL_WRITES;
+        }
+    };
+
+    private boolean loaded = false;
+
+    public ControlModelCache(CouchDbInstance server, CouchDbConnector database) {
+        this.server = server;
+        this.database = database;
+    }
+
+    static final int MAX_LOCAL_WRITES = 500;
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Loads every control model, returning the update sequence the cache is consistent with.
+     */
+    public synchronized long load() {
+        long updateSeq = database.getDbInfo().getUpdateSeq();
+        clear();
+        for (Map.Entry<String, Class<? extends SyncpointModel>> entry : MODEL_TYPES.entrySet()) {
+            List<? extends SyncpointModel> models = SyncpointModelFactory.getModelsOfType(server, database, entry.getKey(), entry.getValue());
+            for (SyncpointModel model : models) {
+                index(model);
+            }
+        }
+        loaded = true;
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Loaded %d control models at sequence %d", modelsById.size(), updateSeq));
+        return updateSeq;
+    }
+
+    public synchronized void invalidate() {
+        clear();
+        loaded = false;
+    }
+
+    /**
+     * Remembers a revision written by this client, so the changes feed reporting it back
+     * can be ignored.
+     */
+    public synchronized void localWriteHappened(String docId, String revision) {
+        if(docId != null && revision != null) {
+            localWrites.put(docId + " " + revision, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Tells whether a change reported by the changes feed is one this client made itself.
+     * Each write is only recognised once.
+     */
+    public synchronized boolean isLocalEcho(String docId, String revision) {
+        if(localWrites.remove(docId + " " + revision) != null) {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks a document as stale unless we already hold that revision.
+     */
+    public synchronized void documentChanged(String docId, String revision, boolean deleted) {
+        if(!loaded) {
+            return;
+        }
+        IndexEntry existing = modelsById.get(docId);
+        if(deleted) {
+            unindex(docId);
+            staleIds.remove(docId);
+            return;
+        }
+        if(existing != null && revision != null && revision.equals(existing.model.getRevision())) {
+            return;
+        }
+        staleIds.add(docId);
+    }
+
+    /**
+     * Called after a model was written by this client so the cache does not need to re-read it.
+     */
+    public synchronized void modelSaved(SyncpointModel model) {
+        localWriteHappened(model.getId(), model.getRevision());
+        if(!loaded || !MODEL_TYPES.containsKey(model.getType())) {
+            return;
+        }
+        unindex(model.getId());
+        SyncpointModel copy = model.copyOfSnapshot(model.getClass());
+        if(copy != null) {
+            index(copy);
+            staleIds.remove(model.getId());
+        } else {
+            staleIds.add(model.getId());
+        }
+    }
+
+    public synchronized void modelDeleted(SyncpointModel model, String deletedRevision) {
+        localWriteHappened(model.getId(), deletedRevision);
+        if(!loaded) {
+            return;
+        }
+        unindex(model.getId());
+        staleIds.remove(model.getId());
+    }
+
+    public synchronized <T extends SyncpointModel> List<T> getModelsOfType(String type, Class<T> clazz) {
+        refreshStale();
+        return snapshot(modelsByType.get(type), clazz);
+    }
+
+    public synchronized <T extends SyncpointModel> List<T> getModelsOfType(String type, String ownerId, Class<T> clazz) {
+        refreshStale();
+        return snapshot(modelsByOwner.get(indexKey(type, ownerId)), clazz);
+    }
+
+    public synchronized <T extends SyncpointModel> List<T> getModelsOfTypeInChannel(String type, String channelId, Class<T> clazz) {
+        refreshStale();
+        return snapshot(modelsByChannel.get(indexKey(type, channelId)), clazz);
+    }
+
+    public synchronized SyncpointModel getModel(String docId) {
+        refreshStale();
+        IndexEntry entry = modelsById.get(docId);
+        return entry != null ? copyOf(entry.model, SyncpointModel.class) : null;
+    }
+
+    private <T extends SyncpointModel> List<T> snapshot(Map<String, SyncpointModel> models, Class<T> clazz) {
+        SyncpointMetrics metrics = SyncpointMetrics.getInstance();
+        metrics.counter(SyncpointMetrics.MODEL_CACHE_LOOKUPS).increment();
+        if(models == null) {
+            return new ArrayList<T>();
+        }
+        metrics.counter(SyncpointMetrics.MODEL_CACHE_ROWS_MATCHED).add(models.size());
+        List<T> result = new ArrayList<T>(models.size());
+        for (SyncpointModel model : models.values()) {
+            result.add(copyOf(model, clazz));
+        }
+        return result;
+    }
+
+    private static <T extends SyncpointModel> T copyOf(SyncpointModel model, Class<T> clazz) {
+        // cached models are always attached after being read or written, so they have a snapshot
+        return clazz.cast(model.copyOfSnapshot(model.getClass()));
+    }
+
+    /**
+     * Re-reads all stale documents with one _all_docs request.
+     */
+    private void refreshStale() {
+        if(staleIds.isEmpty()) {
+            return;
+        }
+        List<String> ids = new ArrayList<String>(staleIds);
+        staleIds.clear();
+        for (String id : ids) {
+            unindex(id);
+        }
+        ViewQuery query = new ViewQuery().allDocs().includeDocs(true).keys(ids);
+        query.setIgnoreNotFound(true);
+        ViewResult result = database.queryView(query);
+        for (Row row : result.getRows()) {
+            JsonNode docNode = row.getDocAsNode();
+            if(docNode == null || docNode.isNull()) {
+                continue;
+            }
+            JsonNode typeNode = docNode.get("type");
+            Class<? extends SyncpointModel> clazz = typeNode != null ? MODEL_TYPES.get(typeNode.asText()) : null;
+            if(clazz != null) {
+                index(SyncpointModelFactory.bindModel(docNode, server, database, clazz));
+            }
+        }
+    }
+
+    private void clear() {
+        modelsById.clear();
+        modelsByType.clear();
+        modelsByOwner.clear();
+        modelsByChannel.clear();
+        staleIds.clear();
+    }
+
+    private void index(SyncpointModel model) {
+        model.attach(server, database, this);
+        String channelId = channelOf(model);
+        IndexEntry entry = new IndexEntry(model, indexKey(model.getType(), ownerOf(model)),
+                channelId != null ? indexKey(model.getType(), channelId) : null);
+        modelsById.put(model.getId(), entry);
+        addToIndex(modelsByType, model.getType(), model);
+        addToIndex(modelsByOwner, entry.ownerKey, model);
+        if(entry.channelKey != null) {
+            addToIndex(modelsByChannel, entry.channelKey, model);
+        }
+    }
+
+    /**
+     * Removes a document using the keys it was indexed under.
+     */
+    private void unindex(String docId) {
+        IndexEntry entry = modelsById.remove(docId);
+        if(entry == null) {
+            return;
+        }
+        removeFromIndex(modelsByType, entry.model.getType(), docId);
+        removeFromIndex(modelsByOwner, entry.ownerKey, docId);
+        if(entry.channelKey != null) {
+            removeFromIndex(modelsByChannel, entry.channelKey, docId);
+        }
+    }
+
+    private static void addToIndex(Map<String, Map<String, SyncpointModel>> index, String key, SyncpointModel model) {
+        Map<String, SyncpointModel> models = index.get(key);
+        if(models == null) {
+            models = new LinkedHashMap<String, SyncpointModel>();
+            index.put(key, models);
+        }
+        models.put(model.getId(), model);
+    }
+
+    private static void removeFromIndex(Map<String, Map<String, SyncpointModel>> index, String key, String docId) {
+        Map<String, SyncpointModel> models = index.get(key);
+        if(models != null) {
+            models.remove(docId);
+            if(models.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static String indexKey(String type, String value) {
+        return type + "/" + value;
+    }
+
+    private static String ownerOf(SyncpointModel model) {
+        if(model instanceof SyncpointChannel) {
+            return ((SyncpointChannel)model).getOwnerId();
+        } else if(model instanceof SyncpointSubscription) {
+            return ((SyncpointSubscription)model).getOwnerId();
+        } else if(model instanceof SyncpointInstallation) {
+            return ((SyncpointInstallation)model).getOwnerId();
+        }
+        return null;
+    }
+
+    private static String channelOf(SyncpointModel model) {
+        if(model instanceof SyncpointSubscription) {
+            return ((SyncpointSubscription)model).getChannelId();
+        } else if(model instanceof SyncpointInstallation) {
+            return ((SyncpointInstallation)model).getChannelId();
+        }
+        return null;
+    }
+
+    private static class IndexEntry {
+
+        final SyncpointModel model;
+        final String ownerKey;
+        final String channelKey;
+
+        IndexEntry(SyncpointModel model, String ownerKey, String channelKey) {
+            this.model = model;
+            this.ownerKey = ownerKey;
+            this.channelKey = channelKey;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.CouchDbInstance;
+import org.ektorp.DbAccessException;
+import org.ektorp.DbInfo;
+import org.ektorp.ReplicationCommand;
+
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * The first pull of the control database after pairing.
+ *
+ * The pull runs as one non-continuous replication on a thread of its own.  While it runs, the size
+ * of the local control database is checked every PROGRESS_INTERVAL_MS to tell the listener
+ * how many docs and bytes have arrived.  The progress is kept in a _local doc, so if the app
+ * is stopped partway through, the next launch knows the sync was interrupted and keeps
+ * counting from where it was.  The pull itself picks up where it stopped because TouchDB's
+ * replicator checkpoints the source sequence of every replication it runs, which is also
+ * what makes starting it again after a failure cheap.
+ */
+class InitialControlSync {
+
+    interface Listener {
+
+        /**
+         * Called on the control thread whenever more of the control database has arrived.
+         */
+        void initialSyncProgress(long docsTransferred, long bytesTransferred);
+
+        /**
+         * Called on the control thread once the whole control database has arrived.
+         */
+        void initialSyncFinished();
+
+        /**
+         * Called on the control thread if the pull failed.  The checkpoint is kept, so a new
+         * InitialControlSync continues from it.
+         */
+        void initialSyncFailed(Throwable error);
+
+    }
+
+    static final String CHECKPOINT_ID = "syncpoint-initial-sync";
+    static final long PROGRESS_INTERVAL_MS = 1000;
+
+    /**
+     * How far the initial sync got, kept in a _local doc until it completes.
+     */
+    public static class Checkpoint {
+
+        // the size of the control database before the first attempt
+        public long baseDocs;
+        public long baseBytes;
+
+        public long docs;
+        public long bytes;
+        public int attempts;
+
+    }
+
+    private final CouchDbInstance localServer;
+    private final CouchDbConnector controlDatabase;
+    private final String source;
+    private final LocalDocumentStore localDocuments;
+    private final SyncpointExecutors executors;
+    private final Listener listener;
+
+    private Checkpoint checkpoint;
+    private ScheduledFuture<?> progressTask;
+    private volatile boolean cancelled = false;
+
+    InitialControlSync(CouchDbInstance localServer, CouchDbConnector controlDatabase, String source,
+            LocalDocumentStore localDocuments, SyncpointExecutors executors, Listener listener) {
+        this.localServer = localServer;
+        this.controlDatabase = controlDatabase;
+        this.source = source;
+        this.localDocuments = localDocuments;
+        this.executors = executors;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the pull.  Must be called on the control thread.
+     */
+    void start() {
+        checkpoint = readCheckpoint();
+        if(checkpoint == null) {
+            DbInfo info = controlDatabase.getDbInfo();
+            checkpoint = new Checkpoint();
+            checkpoint.baseDocs = info.getDocCount();
+            checkpoint.baseBytes = info.getDiskSize();
+        } else {
+            SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Resuming initial control sync, %d docs arrived before", checkpoint.docs));
+        }
+        checkpoint.attempts++;
+        saveCheckpoint();
+
+        progressTask = executors.getControlExecutor().scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    reportProgress();
+                } catch (RuntimeException e) {
+                    SyncpointLog.e(SyncpointClientImpl.TAG, "Unable to check initial control sync progress", e);
+                }
+            }
+        }, PROGRESS_INTERVAL_MS, PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        executors.runLongRunning("Initial control pull", new Runnable() {
+
+            @Override
+            public void run() {
+                Throwable failure = null;
+                try {
+                    //non-continuous replication will block till completion
+                    localServer.replicate(replication(false));
+                } catch (RuntimeException e) {
+                    failure = e;
+                } finally {
+                    progressTask.cancel(false);
+                }
+                final Throwable error = failure;
+                executors.runOnControl("Finishing initial control sync", new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if(cancelled) {
+                            return;
+                        }
+                        if(error != null) {
+                            SyncpointLog.e(SyncpointClientImpl.TAG, "Initial control pull failed", error);
+                            listener.initialSyncFailed(error);
+                            return;
+                        }
+                        reportProgress();
+                        deleteCheckpoint();
+                        listener.initialSyncFinished();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops the pull.  What arrived so far stays, and the next start() continues from there.
+     */
+    void cancel() {
+        if(cancelled) {
+            return;
+        }
+        cancelled = true;
+        if(progressTask != null) {
+            progressTask.cancel(false);
+        }
+        try {
+            localServer.replicate(replication(true));
+        } catch (DbAccessException e) {
+            // it may have finished already
+            SyncpointLog.v(SyncpointClientImpl.TAG, "Unable to cancel the initial control pull", e);
+        }
+    }
+
+    private ReplicationCommand replication(boolean cancel) {
+        ReplicationCommand.Builder builder = new ReplicationCommand.Builder()
+        .source(source)
+        .target(controlDatabase.getDatabaseName())
+        .continuous(false);
+        if(cancel) {
+            builder.cancel(true);
+        }
+        return builder.build();
+    }
+
+    private void reportProgress() {
+        if(cancelled) {
+            return;
+        }
+        DbInfo info = controlDatabase.getDbInfo();
+        long docs = Math.max(0, info.getDocCount() - checkpoint.baseDocs);
+        long bytes = Math.max(0, info.getDiskSize() - checkpoint.baseBytes);
+        if(docs == checkpoint.docs && bytes == checkpoint.bytes) {
+            return;
+        }
+        checkpoint.docs = docs;
+        checkpoint.bytes = bytes;
+        saveCheckpoint();
+        listener.initialSyncProgress(docs, bytes);
+    }
+
+    private Checkpoint readCheckpoint() {
+        try {
+            return localDocuments.get(CHECKPOINT_ID, Checkpoint.class);
+        } catch (DbAccessException e) {
+            SyncpointLog.e(SyncpointClientImpl.TAG, "Unable to read the initial control sync checkpoint", e);
+            return null;
+        }
+    }
+
+    private void saveCheckpoint() {
+        try {
+            localDocuments.put(CHECKPOINT_ID, checkpoint);
+        } catch (DbAccessException e) {
+            SyncpointLog.e(SyncpointClientImpl.TAG, "Unable to save the initial control sync checkpoint", e);
+        }
+    }
+
+    private void deleteCheckpoint() {
+        try {
+            localDocuments.delete(CHECKPOINT_ID);
+        } catch (DbAccessException e) {
+            SyncpointLog.e(SyncpointClientImpl.TAG, "Unable to delete the initial control sync checkpoint", e);
+        }
+    }
+
+}
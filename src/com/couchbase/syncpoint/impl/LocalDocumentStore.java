@@ -0,0 +1,187 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DbAccessException;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.http.HttpResponse;
+import org.ektorp.http.ResponseCallback;
+import org.ektorp.http.RestTemplate;
+import org.ektorp.http.StdResponseHandler;
+import org.ektorp.impl.StdObjectMapperFactory;
+
+/**
+ * Reads and writes _local documents, which stay on this device: they are never replicated
+ * and don't show up in the changes feed.
+ *
+ * Ektorp has no API for them, so they are accessed through the database's HTTP connection.
+ * The current revision of each document is remembered so updates don't need a read first.
+ */
+public class LocalDocumentStore {
+
+    private static final ObjectMapper objectMapper = new StdObjectMapperFactory().createObjectMapper();
+
+    private final CouchDbConnector database;
+    private final RestTemplate restTemplate;
+    private final Map<String, String> revisions = new HashMap<String, String>();
+
+    public LocalDocumentStore(CouchDbConnector database) {
+        this.database = database;
+        this.restTemplate = new RestTemplate(database.getConnection());
+    }
+
+    /**
+     * Returns the local document with the given id, or null if there is none.
+     */
+    public <T> T get(String id, Class<T> clazz) {
+        JsonNode node = getNode(id);
+        if(node == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(node, clazz);
+        } catch (Exception e) {
+            throw new DbAccessException(e);
+        }
+    }
+
+    /**
+     * Saves the given object as the local document with the given id, replacing what was
+     * there before.
+     */
+    public void put(String id, Object doc) {
+        ObjectNode body = objectMapper.valueToTree(doc);
+        body.remove("_id");
+        body.remove("_rev");
+        String revision = getRevision(id);
+        try {
+            putNode(id, body, revision);
+        } catch (UpdateConflictException e) {
+            // someone else wrote it, so we are out of date; last write wins for local docs
+            forgetRevision(id);
+            putNode(id, body, getRevision(id));
+        }
+    }
+
+    public void delete(String id) {
+        final String revision = getRevision(id);
+        if(revision == null) {
+            return;
+        }
+        restTemplate.delete(path(id) + "?rev=" + revision, new StdResponseHandler<Void>() {
+
+            @Override
+            public Void error(HttpResponse hr) {
+                if(hr.getCode() == 404) {
+                    return null;
+                }
+                return super.error(hr);
+            }
+        });
+        forgetRevision(id);
+    }
+
+    /**
+     * Returns the body of the local document as it was put, without the _id and _rev the
+     * server adds, or null if there is none.
+     */
+    private JsonNode getNode(final String id) {
+        JsonNode node = restTemplate.get(path(id), new StdResponseHandler<JsonNode>() {
+
+            @Override
+            public JsonNode success(HttpResponse hr) throws Exception {
+                return objectMapper.readTree(hr.getContent());
+            }
+
+            @Override
+            public JsonNode error(HttpResponse hr) {
+                if(hr.getCode() == 404) {
+                    return null;
+                }
+                return super.error(hr);
+            }
+        });
+        synchronized (this) {
+            if(node != null && node.has("_rev")) {
+                revisions.put(id, node.get("_rev").getTextValue());
+            } else {
+                revisions.remove(id);
+            }
+        }
+        if(node instanceof ObjectNode) {
+            ((ObjectNode)node).remove("_id");
+            ((ObjectNode)node).remove("_rev");
+        }
+        return node;
+    }
+
+    private void putNode(String id, ObjectNode body, String revision) {
+        if(revision != null) {
+            body.put("_rev", revision);
+        } else {
+            body.remove("_rev");
+        }
+        String newRevision = restTemplate.put(path(id), body.toString(), new ResponseCallback<String>() {
+
+            @Override
+            public String success(HttpResponse hr) throws Exception {
+                JsonNode result = objectMapper.readTree(hr.getContent());
+                return result.has("rev") ? result.get("rev").getTextValue() : null;
+            }
+
+            @Override
+            public String error(HttpResponse hr) {
+                if(hr.getCode() == 409) {
+                    throw new UpdateConflictException();
+                }
+                throw StdResponseHandler.createDbAccessException(hr);
+            }
+        });
+        synchronized (this) {
+            revisions.put(id, newRevision);
+        }
+    }
+
+    private String getRevision(String id) {
+        synchronized (this) {
+            if(revisions.containsKey(id)) {
+                return revisions.get(id);
+            }
+        }
+        getNode(id);
+        synchronized (this) {
+            return revisions.get(id);
+        }
+    }
+
+    private synchronized void forgetRevision(String id) {
+        revisions.remove(id);
+    }
+
+    private String path(String id) {
+        return database.path() + "_local/" + id;
+    }
+
+}
@@ -0,0 +1,157 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DbAccessException;
+import org.ektorp.changes.ChangesCommand;
+import org.ektorp.changes.DocumentChange;
+
+import com.couchbase.syncpoint.model.PairingUser;
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * Waits, off the main thread, for the server to mark the pairing user as paired.
+ *
+ * The watcher long-polls the _changes feed of the user database, filtered to the pairing
+ * user doc, so it hears about the change as soon as it is made.  If the feed can't be read
+ * (pairing users are normally not allowed to read _users/_changes) it falls back to fetching
+ * the doc.  That is the usual case, so the poll delay only grows to a couple of seconds;
+ * it backs off further only while the server returns errors.  It gives up after the timeout.
+ */
+class PairingWatcher implements Runnable {
+
+    interface Listener {
+
+        void pairingDidComplete(CouchDbConnector remote, PairingUser userDoc);
+
+        void pairingDidFail(String reason);
+
+    }
+
+    static final long DEFAULT_TIMEOUT_MS = 10 * 60 * 1000;
+    static final long MIN_POLL_DELAY_MS = 250;
+    static final long MAX_POLL_DELAY_MS = 2000;
+    static final long MAX_ERROR_DELAY_MS = 15 * 1000;
+
+    // must stay below the socket timeout of the http client
+    static final int LONGPOLL_TIMEOUT_MS = 8000;
+
+    private final CouchDbConnector remote;
+    private final String userDocId;
+    private final Listener listener;
+    private final long timeoutMs;
+
+    private volatile boolean cancelled = false;
+
+    PairingWatcher(CouchDbConnector remote, String userDocId, Listener listener, long timeoutMs) {
+        this.remote = remote;
+        this.userDocId = userDocId;
+        this.listener = listener;
+        this.timeoutMs = timeoutMs;
+    }
+
+    void start(Executor executor) {
+        executor.execute(this);
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void run() {
+        SyncpointLog.v(SyncpointClientImpl.TAG, "Waiting for pairing to complete...");
+        long deadline = now() + timeoutMs;
+        long since = -1;
+        try {
+            since = remote.getDbInfo().getUpdateSeq();
+        } catch (DbAccessException e) {
+            SyncpointLog.v(SyncpointClientImpl.TAG, "Pairing changes feed unavailable, polling instead");
+        }
+
+        long pollDelay = MIN_POLL_DELAY_MS;
+        while(!cancelled && now() < deadline) {
+            try {
+                PairingUser user = remote.get(PairingUser.class, userDocId);
+                if("paired".equals(user.getPairingState())) {
+                    listener.pairingDidComplete(remote, user);
+                    return;
+                }
+                SyncpointLog.v(SyncpointClientImpl.TAG, "Pairing state is " + user.getPairingState());
+                pollDelay = Math.min(pollDelay, MAX_POLL_DELAY_MS);
+
+                if(since >= 0) {
+                    since = waitForChange(since);
+                } else {
+                    Thread.sleep(Math.min(pollDelay, Math.max(0, deadline - now())));
+                    pollDelay = Math.min(pollDelay * 2, MAX_POLL_DELAY_MS);
+                }
+            } catch (DbAccessException e) {
+                if(since >= 0) {
+                    SyncpointLog.v(SyncpointClientImpl.TAG, "Pairing changes feed failed, polling instead", e);
+                    since = -1;
+                } else {
+                    SyncpointLog.e(SyncpointClientImpl.TAG, "Error checking pairing state", e);
+                    sleepQuietly(pollDelay);
+                    pollDelay = Math.min(pollDelay * 2, MAX_ERROR_DELAY_MS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        if(!cancelled) {
+            listener.pairingDidFail("Timed out waiting for pairing to complete");
+        }
+    }
+
+    /**
+     * Blocks until the pairing user changes or the long poll times out, returning the
+     * sequence to continue from.
+     */
+    private long waitForChange(long since) {
+        ChangesCommand command = new ChangesCommand.Builder()
+        .since(since)
+        .filter("_doc_ids")
+        .param("doc_ids", String.format("[\"%s\"]", userDocId))
+        .param("feed", "longpoll")
+        .param("timeout", Integer.toString(LONGPOLL_TIMEOUT_MS))
+        .build();
+        List<DocumentChange> changes = remote.changes(command);
+        for (DocumentChange change : changes) {
+            since = Math.max(since, change.getSequence());
+        }
+        return since;
+    }
+
+    private static void sleepQuietly(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+}
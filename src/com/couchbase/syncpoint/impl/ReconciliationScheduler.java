@@ -0,0 +1,255 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.couchbase.syncpoint.SyncpointMetrics;
+import com.couchbase.syncpoint.platform.Clock;
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * Collapses bursts of reconciliation requests into a single run.
+ *
+ * A run starts once no new request has arrived for the quiet period, but never later than
+ * the maximum latency after the first request of the burst.  Only one run is ever in
+ * progress; requests that arrive while it runs are merged into a single follow-up run.
+ *
+ * The ids of the documents that changed during a burst are handed to the run, so it only
+ * has to look at what changed.  A full run is passed null instead.
+ *
+ * A run that fails is followed by a full run after a delay that doubles with every failure
+ * in a row; requests made in the meantime wait for it too.
+ */
+public class ReconciliationScheduler {
+
+    public interface Reconciliation {
+
+        void reconcile(Set<String> changedDocIds);
+
+        /**
+         * Called after a run succeeded with the highest changes feed sequence it covered.
+         */
+        void reconciledThrough(long sequence);
+
+    }
+
+    public static final long DEFAULT_QUIET_PERIOD_MS = 1000;
+    public static final long DEFAULT_MAX_LATENCY_MS = 5000;
+    public static final long DEFAULT_RETRY_DELAY_MS = 5000;
+    public static final long MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+
+    private final ScheduledExecutorService executor;
+    private final Reconciliation reconciliation;
+
+    private long quietPeriodMs = DEFAULT_QUIET_PERIOD_MS;
+    private long maxLatencyMs = DEFAULT_MAX_LATENCY_MS;
+    private long retryDelayMs = DEFAULT_RETRY_DELAY_MS;
+
+    private final Clock clock;
+    private ScheduledFuture<?> pendingRun;
+    private long burstStartedAt = -1;
+    private boolean running = false;
+    private boolean followUpRequested = false;
+    private boolean fullRunRequested = false;
+    private Set<String> changedDocIds = new HashSet<String>();
+    private long changedThroughSequence = -1;
+    private int failures = 0;
+    private long retryAt = -1;
+
+    public ReconciliationScheduler(ScheduledExecutorService executor, Reconciliation reconciliation) {
+        this(executor, reconciliation, Clock.SYSTEM);
+    }
+
+    public ReconciliationScheduler(ScheduledExecutorService executor, Reconciliation reconciliation, Clock clock) {
+        this.executor = executor;
+        this.reconciliation = reconciliation;
+        this.clock = clock;
+    }
+
+    public synchronized void setQuietPeriod(long quietPeriodMs) {
+        this.quietPeriodMs = quietPeriodMs;
+    }
+
+    public synchronized void setMaxLatency(long maxLatencyMs) {
+        this.maxLatencyMs = maxLatencyMs;
+    }
+
+    /**
+     * Sets how long to wait before running again after the first failed run.
+     */
+    public synchronized void setRetryDelay(long retryDelayMs) {
+        this.retryDelayMs = retryDelayMs;
+    }
+
+    /**
+     * Requests a reconciliation of everything, merging it with any that is already pending.
+     */
+    public synchronized void requestFullRun() {
+        fullRunRequested = true;
+        requestRun();
+    }
+
+    /**
+     * Like requestFullRun(), for a run that covers the changes feed through the given
+     * sequence.
+     */
+    public synchronized void requestFullRun(long sequence) {
+        changedThroughSequence = Math.max(changedThroughSequence, sequence);
+        requestFullRun();
+    }
+
+    /**
+     * Requests a reconciliation of one changed document, merging it with any that is
+     * already pending.
+     */
+    public synchronized void requestRun(String changedDocId) {
+        changedDocIds.add(changedDocId);
+        requestRun();
+    }
+
+    /**
+     * Like requestRun(String), for a document reported by the changes feed at the given
+     * sequence.
+     */
+    public synchronized void requestRun(String changedDocId, long sequence) {
+        changedThroughSequence = Math.max(changedThroughSequence, sequence);
+        requestRun(changedDocId);
+    }
+
+    /**
+     * Notes a change the feed reported at the given sequence that needs no reconciliation,
+     * e.g. one this client made itself.  The sequence is reported once everything requested
+     * before it has been reconciled: right away if nothing is pending, otherwise with the run
+     * that is coming.
+     */
+    public synchronized void skippedThrough(final long sequence) {
+        changedThroughSequence = Math.max(changedThroughSequence, sequence);
+        if(running || pendingRun != null) {
+            return;
+        }
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                reconciliation.reconciledThrough(sequence);
+            }
+        });
+    }
+
+    private void requestRun() {
+        SyncpointMetrics metrics = SyncpointMetrics.getInstance();
+        metrics.counter(SyncpointMetrics.RECONCILIATION_REQUESTS).increment();
+        if(running || pendingRun != null) {
+            // handled by the run that is already coming
+            metrics.counter(SyncpointMetrics.RECONCILIATION_MERGED).increment();
+        }
+        if(running) {
+            followUpRequested = true;
+            return;
+        }
+        scheduleRun();
+    }
+
+    private void scheduleRun() {
+        long now = now();
+        if(burstStartedAt < 0) {
+            burstStartedAt = now;
+        }
+        long delay = Math.min(quietPeriodMs, burstStartedAt + maxLatencyMs - now);
+        if(retryAt >= 0) {
+            // backing off after a failed run
+            delay = Math.max(delay, retryAt - now);
+        }
+        if(delay < 0) {
+            delay = 0;
+        }
+        if(pendingRun != null) {
+            pendingRun.cancel(false);
+        }
+        pendingRun = executor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                runReconciliation();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void runReconciliation() {
+        Set<String> changed;
+        long throughSequence;
+        synchronized (this) {
+            if(running) {
+                followUpRequested = true;
+                return;
+            }
+            running = true;
+            pendingRun = null;
+            burstStartedAt = -1;
+            changed = fullRunRequested ? null : changedDocIds;
+            fullRunRequested = false;
+            changedDocIds = new HashSet<String>();
+            throughSequence = changedThroughSequence;
+        }
+        long startedAt = clock.nanoTime();
+        boolean failed = false;
+        try {
+            reconciliation.reconcile(changed);
+            if(throughSequence >= 0) {
+                reconciliation.reconciledThrough(throughSequence);
+            }
+        } catch (RuntimeException e) {
+            SyncpointLog.e(SyncpointClientImpl.TAG, "Reconciliation failed", e);
+            failed = true;
+        } finally {
+            SyncpointMetrics metrics = SyncpointMetrics.getInstance();
+            metrics.counter(SyncpointMetrics.RECONCILIATION_RUNS).increment();
+            metrics.histogram(SyncpointMetrics.RECONCILIATION_US).record((clock.nanoTime() - startedAt) / 1000);
+            synchronized (this) {
+                running = false;
+                if(failed) {
+                    // the changes we were given were not all handled, so look at everything next time
+                    fullRunRequested = true;
+                    followUpRequested = false;
+                    long delay = Math.min(retryDelayMs << Math.min(failures, 16), MAX_RETRY_DELAY_MS);
+                    failures++;
+                    retryAt = now() + delay;
+                    SyncpointLog.w(SyncpointClientImpl.TAG, String.format("Reconciling again in %d ms", delay));
+                    scheduleRun();
+                } else {
+                    failures = 0;
+                    retryAt = -1;
+                    if(followUpRequested) {
+                        followUpRequested = false;
+                        scheduleRun();
+                    }
+                }
+            }
+        }
+    }
+
+    private long now() {
+        return clock.nanoTime() / 1000000;
+    }
+
+}
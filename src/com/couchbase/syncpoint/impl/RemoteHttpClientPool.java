@@ -0,0 +1,335 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.ektorp.android.http.AndroidHttpClient;
+import org.ektorp.http.HttpClient;
+
+/**
+ * One pool of keep-alive connections to a Syncpoint server, shared by everything that talks
+ * to it.
+ *
+ * Clients handed out by the pool differ only in the credentials they send; the connections
+ * underneath are shared, so pairing as an anonymous user and then as the pairing user reuses
+ * the same sockets and TLS sessions.  Credentials are sent preemptively with each request,
+ * which saves the 401 round trip Basic auth would otherwise take.  Idle connections are
+ * closed as requests come in.
+ *
+ * Each client of a server holds the pool with acquire() and gives it back with release(); the
+ * connections are closed when the last holder releases it.
+ */
+public class RemoteHttpClientPool {
+
+    public static final int DEFAULT_MAX_PER_ROUTE = 4;
+    public static final int DEFAULT_MAX_TOTAL = 8;
+    public static final int CONNECTION_TIMEOUT_MS = 10000;
+    public static final int SOCKET_TIMEOUT_MS = 30000;
+    public static final long IDLE_TIMEOUT_MS = 30000;
+
+    private static final String CREDENTIALS_ATTRIBUTE = "syncpoint.credentials";
+
+    private static final Map<String, RemoteHttpClientPool> pools = new HashMap<String, RemoteHttpClientPool>();
+
+    private final String key;
+    private final ThreadSafeClientConnManager connectionManager;
+    private final DefaultHttpClient client;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private long lastReapedAt;
+
+    // guarded by pools
+    private int holders = 0;
+
+    /**
+     * Returns the pool for the given server, making it on first use.  The pool is only kept
+     * open while someone holds it, see acquire().
+     */
+    public static RemoteHttpClientPool forURL(URL serverURL) {
+        String key = keyFor(serverURL);
+        synchronized (pools) {
+            RemoteHttpClientPool pool = pools.get(key);
+            if(pool == null) {
+                pool = new RemoteHttpClientPool(key, serverURL);
+                pools.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Returns the pool for the given server and holds it open until release() is called.
+     */
+    public static RemoteHttpClientPool acquire(URL serverURL) {
+        synchronized (pools) {
+            RemoteHttpClientPool pool = forURL(serverURL);
+            pool.holders++;
+            return pool;
+        }
+    }
+
+    /**
+     * Gives back a pool returned by acquire(), shutting it down if nobody else holds it.  The
+     * pool is forgotten in the same step the last holder lets go of it, so an acquire() that
+     * comes in meanwhile makes a new pool instead of getting the one being shut down.
+     */
+    public void release() {
+        synchronized (pools) {
+            if(holders > 0 && --holders > 0) {
+                return;
+            }
+            forget();
+        }
+        connectionManager.shutdown();
+    }
+
+    private RemoteHttpClientPool(String key, URL serverURL) {
+        this.key = key;
+
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT_MS);
+        HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MS);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpProtocolParams.setUseExpectContinue(params, false);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(DEFAULT_MAX_PER_ROUTE));
+        ConnManagerParams.setMaxTotalConnections(params, DEFAULT_MAX_TOTAL);
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        connectionManager = new ThreadSafeClientConnManager(params, registry);
+
+        int port = serverURL.getPort() != -1 ? serverURL.getPort() : serverURL.getDefaultPort();
+        params.setParameter(ClientPNames.DEFAULT_HOST, new HttpHost(serverURL.getHost(), port, serverURL.getProtocol()));
+
+        client = new DefaultHttpClient(connectionManager, params);
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+
+            @Override
+            public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+                String credentials = (String)context.getAttribute(CREDENTIALS_ATTRIBUTE);
+                if(credentials != null && !request.containsHeader("Authorization")) {
+                    request.addHeader("Authorization", credentials);
+                }
+            }
+        });
+        client.addResponseInterceptor(new HttpResponseInterceptor() {
+
+            @Override
+            public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+                requestCount.incrementAndGet();
+                HttpConnection connection = (HttpConnection)context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+                if(connection != null && connection.getMetrics().getRequestCount() > 1) {
+                    reusedCount.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a client that makes anonymous requests.
+     */
+    public HttpClient getClient() {
+        return getClient(null, null);
+    }
+
+    /**
+     * Returns a client that authenticates every request as the given user.
+     */
+    public HttpClient getClient(String username, String password) {
+        String credentials = null;
+        if(username != null) {
+            UsernamePasswordCredentials userPass = new UsernamePasswordCredentials(username, password != null ? password : "");
+            credentials = BasicScheme.authenticate(userPass, "US-ASCII", false).getValue();
+        }
+        return new PooledHttpClient(new CredentialsHttpClient(credentials));
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * The number of requests that were sent over a connection used before.
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    public void closeIdleConnections() {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes every connection, whoever holds the pool.  The next call to forURL() makes a
+     * new pool.
+     */
+    public void shutdown() {
+        synchronized (pools) {
+            forget();
+        }
+        connectionManager.shutdown();
+    }
+
+    // called with pools held
+    private void forget() {
+        if(pools.get(key) == this) {
+            pools.remove(key);
+        }
+    }
+
+    private void closeIdleConnectionsIfDue() {
+        long now = System.nanoTime() / 1000000;
+        synchronized (this) {
+            if(now - lastReapedAt < IDLE_TIMEOUT_MS) {
+                return;
+            }
+            lastReapedAt = now;
+        }
+        closeIdleConnections();
+    }
+
+    private static String keyFor(URL serverURL) {
+        // http://host and http://host:80 are the same server
+        int port = serverURL.getPort() != -1 ? serverURL.getPort() : serverURL.getDefaultPort();
+        return String.format("%s://%s:%d", serverURL.getProtocol().toLowerCase(), serverURL.getHost().toLowerCase(), port);
+    }
+
+    /**
+     * The pool outlives the clients it hands out, so shutting one of them down must leave
+     * the shared connections open.
+     */
+    private static class PooledHttpClient extends AndroidHttpClient {
+
+        PooledHttpClient(org.apache.http.client.HttpClient client) {
+            super(client);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    /**
+     * Runs every request through the shared client with the credentials of one user.
+     */
+    private class CredentialsHttpClient implements org.apache.http.client.HttpClient {
+
+        private final String credentials;
+
+        CredentialsHttpClient(String credentials) {
+            this.credentials = credentials;
+        }
+
+        private HttpContext newContext(HttpContext parent) {
+            closeIdleConnectionsIfDue();
+            HttpContext context = parent != null ? parent : new BasicHttpContext();
+            context.setAttribute(CREDENTIALS_ATTRIBUTE, credentials);
+            return context;
+        }
+
+        @Override
+        public HttpParams getParams() {
+            return client.getParams();
+        }
+
+        @Override
+        public ClientConnectionManager getConnectionManager() {
+            return connectionManager;
+        }
+
+        @Override
+        public HttpResponse execute(HttpUriRequest request) throws IOException, ClientProtocolException {
+            return client.execute(request, newContext(null));
+        }
+
+        @Override
+        public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException, ClientProtocolException {
+            return client.execute(request, newContext(context));
+        }
+
+        @Override
+        public HttpResponse execute(HttpHost target, HttpRequest request) throws IOException, ClientProtocolException {
+            return client.execute(target, request, newContext(null));
+        }
+
+        @Override
+        public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException, ClientProtocolException {
+            return client.execute(target, request, newContext(context));
+        }
+
+        @Override
+        public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> responseHandler) throws IOException, ClientProtocolException {
+            return client.execute(request, responseHandler, newContext(null));
+        }
+
+        @Override
+        public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> responseHandler, HttpContext context) throws IOException, ClientProtocolException {
+            return client.execute(request, responseHandler, newContext(context));
+        }
+
+        @Override
+        public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> responseHandler) throws IOException, ClientProtocolException {
+            return client.execute(target, request, responseHandler, newContext(null));
+        }
+
+        @Override
+        public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> responseHandler, HttpContext context) throws IOException, ClientProtocolException {
+            return client.execute(target, request, responseHandler, newContext(context));
+        }
+    }
+
+}
@@ -0,0 +1,310 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.ektorp.CouchDbInstance;
+import org.ektorp.DbAccessException;
+import org.ektorp.ReplicationCommand;
+import org.ektorp.ReplicationStatus;
+import org.ektorp.http.HttpResponse;
+import org.ektorp.http.RestTemplate;
+import org.ektorp.http.StdResponseHandler;
+import org.ektorp.impl.StdObjectMapperFactory;
+
+import com.couchbase.syncpoint.SyncpointMetrics;
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * Keeps track of the continuous replications this client has started, so that a replication
+ * that is already running is not started again, and replications belonging to something that
+ * has gone away (e.g. a deleted installation) can be cancelled.
+ *
+ * A continuous replication can also stop on its own, e.g. when the remote database goes away.
+ * pruneStopped() checks the server's _active_tasks and forgets those, so they get started
+ * again.
+ */
+public class ReplicationRegistry {
+
+    public static final String CONTROL_OWNER = "control";
+
+    public enum Direction {
+        PULL, PUSH
+    }
+
+    public static class Key {
+
+        public final String source;
+        public final String target;
+        public final Direction direction;
+        public final String filter;
+
+        public Key(String source, String target, Direction direction, String filter) {
+            this.source = source;
+            this.target = target;
+            this.direction = direction;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return source.equals(other.source) && target.equals(other.target) && direction == other.direction
+                    && (filter == null ? other.filter == null : filter.equals(other.filter));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = source.hashCode();
+            result = 31 * result + target.hashCode();
+            result = 31 * result + direction.hashCode();
+            result = 31 * result + (filter != null ? filter.hashCode() : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s -> %s", direction, source, target);
+        }
+    }
+
+    static class Replication {
+
+        final Key key;
+        final String owner;
+        String replicationId;
+
+        Replication(Key key, String owner) {
+            this.key = key;
+            this.owner = owner;
+        }
+    }
+
+    private static final ObjectMapper objectMapper = new StdObjectMapperFactory().createObjectMapper();
+
+    private final CouchDbInstance server;
+    private final Map<Key, Replication> replications = new HashMap<Key, Replication>();
+
+    public ReplicationRegistry(CouchDbInstance server) {
+        this.server = server;
+    }
+
+    /**
+     * Starts a continuous replication unless the same one is already running.
+     *
+     * @return true if a new replication was started
+     */
+    public boolean start(String owner, Direction direction, String source, String target, String filter) {
+        Key key = new Key(source, target, direction, filter);
+        Replication replication;
+        synchronized (this) {
+            if(replications.containsKey(key)) {
+                SyncpointMetrics.getInstance().counter(SyncpointMetrics.REPLICATIONS_DEDUPLICATED).increment();
+                return false;
+            }
+            replication = new Replication(key, owner);
+            replications.put(key, replication);
+        }
+
+        try {
+            ReplicationStatus status = server.replicate(command(key, false));
+            synchronized (this) {
+                replication.replicationId = replicationIdOf(status);
+            }
+            SyncpointMetrics.getInstance().counter(SyncpointMetrics.REPLICATIONS_STARTED).increment();
+            SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Started replication %s (%s)", key, replication.replicationId));
+            return true;
+        } catch (DbAccessException e) {
+            synchronized (this) {
+                replications.remove(key);
+            }
+            throw e;
+        }
+    }
+
+    public synchronized boolean isRunning(Direction direction, String source, String target, String filter) {
+        return replications.containsKey(new Key(source, target, direction, filter));
+    }
+
+    public synchronized boolean isOwnerRunning(String owner) {
+        for (Replication replication : replications.values()) {
+            if(owner.equals(replication.owner)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the replications that are no longer among the server's active tasks.  When one
+     * replication of an owner has stopped, all of the owner's replications are forgotten, so
+     * the owner is synced again as a whole; starting one that is still running again just
+     * returns the running one.  Nothing is forgotten if the active tasks can't be read.
+     *
+     * @return the owners whose replications were forgotten
+     */
+    public Set<String> pruneStopped() {
+        Set<String> activeTasks = getActiveTaskIds();
+        Set<String> stoppedOwners = new HashSet<String>();
+        if(activeTasks == null) {
+            return stoppedOwners;
+        }
+        synchronized (this) {
+            for (Replication replication : replications.values()) {
+                if(replication.replicationId != null && !isActive(replication.replicationId, activeTasks)) {
+                    SyncpointLog.w(SyncpointClientImpl.TAG, String.format("Replication %s (%s) has stopped", replication.key, replication.replicationId));
+                    stoppedOwners.add(replication.owner);
+                }
+            }
+            for (String owner : stoppedOwners) {
+                removeWhere(owner, null);
+            }
+        }
+        return stoppedOwners;
+    }
+
+    /**
+     * Cancels every replication started for the given owner.
+     */
+    public void cancelOwner(String owner) {
+        for (Replication replication : removeWhere(owner, null)) {
+            cancel(replication);
+        }
+    }
+
+    /**
+     * Cancels every replication whose owner is not in the given collection.  Control database
+     * replications are always kept.
+     */
+    public void cancelOwnersExcept(Collection<String> owners) {
+        for (Replication replication : removeWhere(null, owners)) {
+            cancel(replication);
+        }
+    }
+
+    public synchronized int getRunningCount() {
+        return replications.size();
+    }
+
+    private synchronized List<Replication> removeWhere(String owner, Collection<String> keepOwners) {
+        List<Replication> removed = new ArrayList<Replication>();
+        for (Replication replication : new ArrayList<Replication>(replications.values())) {
+            boolean matches;
+            if(owner != null) {
+                matches = owner.equals(replication.owner);
+            } else {
+                matches = !CONTROL_OWNER.equals(replication.owner) && !keepOwners.contains(replication.owner);
+            }
+            if(matches) {
+                replications.remove(replication.key);
+                removed.add(replication);
+            }
+        }
+        return removed;
+    }
+
+    private void cancel(Replication replication) {
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Cancelling replication %s (%s)", replication.key, replication.replicationId));
+        try {
+            server.replicate(command(replication.key, true));
+            SyncpointMetrics.getInstance().counter(SyncpointMetrics.REPLICATIONS_CANCELLED).increment();
+        } catch (DbAccessException e) {
+            SyncpointLog.e(SyncpointClientImpl.TAG, String.format("Unable to cancel replication %s", replication.key), e);
+        }
+    }
+
+    /**
+     * Returns the ids of the server's active replications, or null if they can't be read.
+     * TouchDB names a replication by its session id in "task"; CouchDB 1.2 by its checkpoint
+     * id in "replication_id", and CouchDB 1.1 puts the checkpoint id first in "task".
+     */
+    private Set<String> getActiveTaskIds() {
+        try {
+            JsonNode tasks = new RestTemplate(server.getConnection()).get("/_active_tasks", new StdResponseHandler<JsonNode>() {
+
+                @Override
+                public JsonNode success(HttpResponse hr) throws Exception {
+                    return objectMapper.readTree(hr.getContent());
+                }
+            });
+            Set<String> result = new HashSet<String>();
+            for (JsonNode task : tasks) {
+                if(task.has("replication_id")) {
+                    result.add(task.get("replication_id").asText());
+                }
+                if(task.has("task")) {
+                    String name = task.get("task").asText();
+                    int end = name.indexOf(':');
+                    result.add(end >= 0 ? name.substring(0, end) : name);
+                }
+            }
+            return result;
+        } catch (DbAccessException e) {
+            SyncpointLog.w(SyncpointClientImpl.TAG, "Unable to read the active tasks", e);
+            return null;
+        }
+    }
+
+    private static boolean isActive(String replicationId, Set<String> activeTasks) {
+        if(activeTasks.contains(replicationId)) {
+            return true;
+        }
+        // CouchDB 1.1 leaves "+continuous" out of the task name
+        int suffix = replicationId.indexOf('+');
+        return suffix > 0 && activeTasks.contains(replicationId.substring(0, suffix));
+    }
+
+    private static ReplicationCommand command(Key key, boolean cancel) {
+        ReplicationCommand.Builder builder = new ReplicationCommand.Builder()
+        .source(key.source)
+        .target(key.target)
+        .continuous(true);
+        if(key.filter != null) {
+            builder.filter(key.filter);
+        }
+        if(cancel) {
+            builder.cancel(true);
+        }
+        return builder.build();
+    }
+
+    private static String replicationIdOf(ReplicationStatus status) {
+        if(status == null) {
+            return null;
+        }
+        if(status.getSessionId() != null) {
+            return status.getSessionId();
+        }
+        // CouchDB reports continuous replications by their checkpoint id
+        Object localId = status.getField("_local_id");
+        return localId != null ? localId.toString() : null;
+    }
+
+}
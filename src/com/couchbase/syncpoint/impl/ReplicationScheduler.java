@@ -0,0 +1,275 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ektorp.CouchDbInstance;
+import org.ektorp.DbAccessException;
+import org.ektorp.ReplicationCommand;
+
+import com.couchbase.syncpoint.SyncpointMetrics;
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * Starts channel replications in priority order with a bounded number in flight.
+ *
+ * Each channel is first caught up with a one-shot pull; only then are its continuous pull
+ * and push registered.  At most maxConcurrent of these jobs run at once, so a large account
+ * does not start dozens of transfers against TouchDB's SQLite lock at the same time.  Control
+ * database jobs only register the continuous replications, so they run on a thread of their
+ * own outside that limit and never wait behind a long catch-up.  Channels are ordered by the
+ * priority the app gave them, then by when they were scheduled.
+ *
+ * A job that fails (e.g. the server can't be reached) stays scheduled and is run again after a
+ * delay that doubles with every failure, until it succeeds or its owner is cancelled.
+ */
+public class ReplicationScheduler {
+
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+    public static final int DEFAULT_CHANNEL_PRIORITY = 0;
+    static final int CONTROL_PRIORITY = Integer.MAX_VALUE;
+    static final long RETRY_INITIAL_DELAY_MS = 5000;
+    static final long RETRY_MAX_DELAY_MS = 5 * 60 * 1000;
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private final CouchDbInstance server;
+    private final ReplicationRegistry registry;
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor controlExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new SyncpointExecutors.NamedThreadFactory("Syncpoint-control-replication"));
+    private final ScheduledExecutorService retries = new ScheduledThreadPoolExecutor(1, new SyncpointExecutors.NamedThreadFactory("Syncpoint-replication-retry"));
+
+    private final Map<String, Integer> channelPriorities = new HashMap<String, Integer>();
+    private final Map<String, Job> scheduledJobs = new HashMap<String, Job>();
+
+    public ReplicationScheduler(CouchDbInstance server, ReplicationRegistry registry, int maxConcurrent) {
+        this.server = server;
+        this.registry = registry;
+        this.executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+        // with every thread started, each job goes through the priority queue instead of
+        // getting a new thread of its own
+        this.executor.prestartAllCoreThreads();
+    }
+
+    public ReplicationRegistry getRegistry() {
+        return registry;
+    }
+
+    public synchronized void setMaxConcurrent(int maxConcurrent) {
+        if(maxConcurrent > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(maxConcurrent);
+            executor.setCorePoolSize(maxConcurrent);
+        } else {
+            executor.setCorePoolSize(maxConcurrent);
+            executor.setMaximumPoolSize(maxConcurrent);
+        }
+        executor.prestartAllCoreThreads();
+    }
+
+    public synchronized void setChannelPriority(String channelName, int priority) {
+        channelPriorities.put(channelName, priority);
+    }
+
+    public synchronized int getChannelPriority(String channelName) {
+        Integer priority = channelPriorities.get(channelName);
+        return priority != null ? priority : DEFAULT_CHANNEL_PRIORITY;
+    }
+
+    /**
+     * Schedules the continuous control database replications, which don't wait for channel
+     * jobs.
+     */
+    public void scheduleControlSync(String remoteURL, String localDbName) {
+        schedule(new Job(ReplicationRegistry.CONTROL_OWNER, CONTROL_PRIORITY, remoteURL, localDbName, false));
+    }
+
+    /**
+     * Schedules a catch-up pull of a channel followed by its continuous pull and push.
+     */
+    public void scheduleChannelSync(String owner, String channelName, String remoteURL, String localDbName) {
+        schedule(new Job(owner, getChannelPriority(channelName), remoteURL, localDbName, true));
+    }
+
+    public void cancelOwner(String owner) {
+        unschedule(owner);
+        registry.cancelOwner(owner);
+    }
+
+    public void cancelOwnersExcept(Collection<String> owners) {
+        synchronized (this) {
+            for (Job job : scheduledJobs.values().toArray(new Job[0])) {
+                if(!ReplicationRegistry.CONTROL_OWNER.equals(job.owner) && !owners.contains(job.owner)) {
+                    unschedule(job.owner);
+                }
+            }
+        }
+        registry.cancelOwnersExcept(owners);
+    }
+
+    /**
+     * Returns true if the owner's replications are scheduled or running.
+     */
+    public synchronized boolean isSyncing(String owner) {
+        return scheduledJobs.containsKey(owner) || registry.isOwnerRunning(owner);
+    }
+
+    public synchronized int getQueuedCount() {
+        return executor.getQueue().size() + controlExecutor.getQueue().size();
+    }
+
+    public void shutdown() {
+        retries.shutdownNow();
+        controlExecutor.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private void schedule(Job job) {
+        synchronized (this) {
+            if(scheduledJobs.containsKey(job.owner)
+                    || (registry.isRunning(ReplicationRegistry.Direction.PULL, job.remoteURL, job.localDbName, null)
+                    && registry.isRunning(ReplicationRegistry.Direction.PUSH, job.localDbName, job.remoteURL, null))) {
+                return;
+            }
+            scheduledJobs.put(job.owner, job);
+        }
+        executorFor(job).execute(job);
+    }
+
+    private synchronized void unschedule(String owner) {
+        Job job = scheduledJobs.remove(owner);
+        if(job != null) {
+            executorFor(job).remove(job);
+        }
+    }
+
+    private ThreadPoolExecutor executorFor(Job job) {
+        return ReplicationRegistry.CONTROL_OWNER.equals(job.owner) ? controlExecutor : executor;
+    }
+
+    private synchronized boolean isScheduled(Job job) {
+        return scheduledJobs.get(job.owner) == job;
+    }
+
+    private void run(Job job) {
+        boolean retrying = false;
+        try {
+            if(!isScheduled(job)) {
+                return;
+            }
+            if(job.catchUp) {
+                // channel databases are created lazily, so make sure this one exists
+                ConnectorCache.forServer(server).open(job.localDbName);
+                SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Catching up %s from %s", job.localDbName, job.remoteURL));
+                ReplicationCommand pull = new ReplicationCommand.Builder()
+                .source(job.remoteURL)
+                .target(job.localDbName)
+                .build();
+                //non-continuous replication will block till completion
+                server.replicate(pull);
+            }
+            if(!isScheduled(job)) {
+                return;
+            }
+            registry.start(job.owner, ReplicationRegistry.Direction.PULL, job.remoteURL, job.localDbName, null);
+            registry.start(job.owner, ReplicationRegistry.Direction.PUSH, job.localDbName, job.remoteURL, null);
+            if(job.catchUp) {
+                SyncpointMetrics.getInstance().endSpan(SyncpointMetrics.CONTROL_SYNCED_TO_FIRST_CHANNEL_SYNC_MS);
+            }
+        } catch (DbAccessException e) {
+            SyncpointLog.e(SyncpointClientImpl.TAG, String.format("Unable to sync %s with %s", job.localDbName, job.remoteURL), e);
+            retrying = retryLater(job);
+        } finally {
+            if(!retrying) {
+                synchronized (this) {
+                    if(scheduledJobs.get(job.owner) == job) {
+                        scheduledJobs.remove(job.owner);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the job again after a backoff delay, keeping it scheduled in the meantime.
+     *
+     * @return false if the job was cancelled and won't be retried
+     */
+    private boolean retryLater(final Job job) {
+        if(!isScheduled(job) || retries.isShutdown()) {
+            return false;
+        }
+        long delay = Math.min(RETRY_INITIAL_DELAY_MS << Math.min(job.failures, 16), RETRY_MAX_DELAY_MS);
+        job.failures++;
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Retrying sync of %s in %d ms", job.localDbName, delay));
+        retries.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                ThreadPoolExecutor jobExecutor = executorFor(job);
+                if(isScheduled(job) && !jobExecutor.isShutdown()) {
+                    jobExecutor.execute(job);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private class Job implements Runnable, Comparable<Job> {
+
+        final String owner;
+        final int priority;
+        final long order = sequence.getAndIncrement();
+        final String remoteURL;
+        final String localDbName;
+        final boolean catchUp;
+        int failures = 0;
+
+        Job(String owner, int priority, String remoteURL, String localDbName, boolean catchUp) {
+            this.owner = owner;
+            this.priority = priority;
+            this.remoteURL = remoteURL;
+            this.localDbName = localDbName;
+            this.catchUp = catchUp;
+        }
+
+        @Override
+        public void run() {
+            ReplicationScheduler.this.run(this);
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if(priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.couchbase.syncpoint.model.SyncpointChannel;
+import com.couchbase.syncpoint.model.SyncpointInstallation;
+import com.couchbase.syncpoint.model.SyncpointModel;
+import com.couchbase.syncpoint.model.SyncpointSession;
+import com.couchbase.syncpoint.model.SyncpointSessionHolder;
+import com.couchbase.syncpoint.model.SyncpointSubscription;
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * Makes installations for active subscriptions and syncs installations whose channels are ready.
+ *
+ * After a first full pass only the documents named in a change set are looked at: a changed
+ * channel brings in its subscriptions and installations, a changed subscription may need an
+ * installation, and a changed installation may need to start syncing.  Which subscriptions are
+ * installed and which installations are syncing is kept in hash maps keyed by document id,
+ * so a new revision of a document is still recognised.
+ *
+ * A full pass also checks which replications are still running, and syncs the installations
+ * whose replications have stopped again.
+ */
+class SubscriptionReconciler {
+
+    private final SyncpointSessionHolder sessionHolder;
+    private final ControlModelCache cache;
+    private final ReplicationScheduler replicationScheduler;
+    private final ConnectorCache connectors;
+
+    // subscription id -> id of our installation of it
+    private final Map<String, String> installationBySubscription = new HashMap<String, String>();
+
+    // installation id -> cloud database it is syncing with; a failed start is retried by the
+    // scheduler, and a full pass forgets installations whose replications have stopped
+    private final Map<String, String> syncingInstallations = new HashMap<String, String>();
+
+    private boolean initialized = false;
+    private boolean deferUntouched = false;
+
+    SubscriptionReconciler(SyncpointSessionHolder sessionHolder, ControlModelCache cache, ReplicationScheduler replicationScheduler, ConnectorCache connectors) {
+        this.sessionHolder = sessionHolder;
+        this.cache = cache;
+        this.replicationScheduler = replicationScheduler;
+        this.connectors = connectors;
+    }
+
+    /**
+     * When set, installations whose local database has never been opened are not synced
+     * until the app first opens it.
+     */
+    synchronized void setDeferUntouched(boolean deferUntouched) {
+        this.deferUntouched = deferUntouched;
+    }
+
+    /**
+     * Reconciles the given changed documents, or everything if changedDocIds is null.
+     */
+    synchronized void reconcile(Set<String> changedDocIds) {
+        if(changedDocIds == null || !initialized || !cache.isLoaded()) {
+            reconcileAll();
+        } else if(!changedDocIds.isEmpty()) {
+            reconcileChanges(changedDocIds);
+        }
+    }
+
+    private void reconcileAll() {
+        SyncpointLog.v(SyncpointClientImpl.TAG, "Reconciling all subscriptions");
+        SyncpointSession session = sessionHolder.getSession();
+        replicationScheduler.getRegistry().pruneStopped();
+        for (Iterator<String> it = syncingInstallations.keySet().iterator(); it.hasNext();) {
+            if(!replicationScheduler.isSyncing(it.next())) {
+                it.remove();
+            }
+        }
+        installationBySubscription.clear();
+        List<SyncpointInstallation> installations = new ArrayList<SyncpointInstallation>(session.getAllInstallations());
+        for (SyncpointInstallation installation : installations) {
+            installationBySubscription.put(installation.getSubscriptionId(), installation.getId());
+        }
+
+        // Make installations for any subscriptions that don't have one:
+        for (SyncpointSubscription subscription : session.getActiveSubscriptions()) {
+            SyncpointInstallation installation = ensureInstalled(subscription);
+            if(installation != null) {
+                installations.add(installation);
+            }
+        }
+
+        Map<String, SyncpointChannel> channelMap = new HashMap<String, SyncpointChannel>();
+        for (SyncpointChannel channel : session.getAllChannels()) {
+            channelMap.put(channel.getId(), channel);
+        }
+
+        // Sync all installations whose channels are ready:
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("There are %d installations here", installations.size()));
+        List<String> installationIds = new ArrayList<String>();
+        for (SyncpointInstallation installation : installations) {
+            installationIds.add(installation.getId());
+            syncIfReady(installation, channelMap.get(installation.getChannelId()));
+        }
+
+        // Stop syncing installations that have gone away:
+        syncingInstallations.keySet().retainAll(installationIds);
+        replicationScheduler.cancelOwnersExcept(installationIds);
+        initialized = true;
+    }
+
+    private void reconcileChanges(Set<String> changedDocIds) {
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Reconciling %d changed documents", changedDocIds.size()));
+        Map<String, SyncpointSubscription> subscriptions = new LinkedHashMap<String, SyncpointSubscription>();
+        Map<String, SyncpointInstallation> installations = new LinkedHashMap<String, SyncpointInstallation>();
+        for (String docId : changedDocIds) {
+            SyncpointModel model = cache.getModel(docId);
+            if(model instanceof SyncpointSubscription) {
+                subscriptions.put(docId, (SyncpointSubscription)model);
+            } else if(model instanceof SyncpointInstallation) {
+                installations.put(docId, (SyncpointInstallation)model);
+            } else if(model instanceof SyncpointChannel) {
+                for (SyncpointSubscription subscription : cache.getModelsOfTypeInChannel("subscription", docId, SyncpointSubscription.class)) {
+                    subscriptions.put(subscription.getId(), subscription);
+                }
+                for (SyncpointInstallation installation : cache.getModelsOfTypeInChannel("installation", docId, SyncpointInstallation.class)) {
+                    installations.put(installation.getId(), installation);
+                }
+            } else if(model == null) {
+                forgetInstallation(docId);
+            }
+        }
+
+        for (SyncpointSubscription subscription : subscriptions.values()) {
+            if(subscription.isActive()) {
+                SyncpointInstallation installation = ensureInstalled(subscription);
+                if(installation != null) {
+                    installations.put(installation.getId(), installation);
+                }
+            }
+        }
+
+        for (SyncpointInstallation installation : installations.values()) {
+            if(isOurs(installation)) {
+                installationBySubscription.put(installation.getSubscriptionId(), installation.getId());
+                syncIfReady(installation, (SyncpointChannel)cache.getModel(installation.getChannelId()));
+            } else {
+                forgetInstallation(installation.getId());
+            }
+        }
+    }
+
+    private boolean isOurs(SyncpointInstallation installation) {
+        return "created".equals(installation.getState()) && installation.isLocal(sessionHolder);
+    }
+
+    private SyncpointInstallation ensureInstalled(SyncpointSubscription subscription) {
+        if(installationBySubscription.containsKey(subscription.getId())) {
+            return null;
+        }
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Making installation db for %s", subscription));
+        SyncpointInstallation installation = subscription.makeInstallation(sessionHolder, null);  // TODO: Report error
+        installationBySubscription.put(subscription.getId(), installation.getId());
+        return installation;
+    }
+
+    private void syncIfReady(SyncpointInstallation installation, SyncpointChannel channel) {
+        if(channel == null) {
+            SyncpointLog.e(SyncpointClientImpl.TAG, String.format("Installation %s references missing channel %s", installation, installation.getChannelId()));
+        } else if(!channel.isReady()) {
+            SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Channel %s is not ready", channel.getName()));
+        } else if(deferUntouched && !connectors.exists(installation.getLocalDbName())) {
+            SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Deferring sync of channel %s until it is opened", channel.getName()));
+        } else if(channel.getCloudDatabase() != null && channel.getCloudDatabase().equals(syncingInstallations.get(installation.getId()))) {
+            SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Channel %s is already syncing", channel.getName()));
+        } else {
+            if(syncingInstallations.containsKey(installation.getId())) {
+                // the channel moved to another cloud database
+                replicationScheduler.cancelOwner(installation.getId());
+            }
+            SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Channel %s is ready, calling sync", channel.getName()));
+            installation.sync(sessionHolder.getSession(), channel, replicationScheduler);
+            syncingInstallations.put(installation.getId(), channel.getCloudDatabase());
+        }
+    }
+
+    private void forgetInstallation(String installationId) {
+        if(syncingInstallations.remove(installationId) != null) {
+            replicationScheduler.cancelOwner(installationId);
+        }
+        for (Iterator<String> it = installationBySubscription.values().iterator(); it.hasNext();) {
+            if(installationId.equals(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+}
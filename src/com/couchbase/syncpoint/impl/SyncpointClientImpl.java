@@ -17,128 +17,529 @@
 
 package com.couchbase.syncpoint.impl;
 
-import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import org.ektorp.CouchDbConnector;
 import org.ektorp.CouchDbInstance;
-import org.ektorp.ReplicationCommand;
-import org.ektorp.android.http.AndroidHttpClient;
-import org.ektorp.android.util.ChangesFeedAsyncTask;
-import org.ektorp.android.util.EktorpAsyncTask;
+import org.ektorp.DbAccessException;
 import org.ektorp.changes.ChangesCommand;
+import org.ektorp.changes.ChangesFeed;
 import org.ektorp.changes.DocumentChange;
 import org.ektorp.http.HttpClient;
 import org.ektorp.impl.StdCouchDbInstance;
 
-import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
-import android.util.Log;
-
 import com.couchbase.syncpoint.SyncpointClient;
+import com.couchbase.syncpoint.SyncpointMetrics;
 import com.couchbase.syncpoint.SyncpointState;
+import com.couchbase.syncpoint.SyncpointStateMachine;
 import com.couchbase.syncpoint.model.PairingUser;
 import com.couchbase.syncpoint.model.SyncpointChannel;
 import com.couchbase.syncpoint.model.SyncpointInstallation;
 import com.couchbase.syncpoint.model.SyncpointSession;
+import com.couchbase.syncpoint.model.SyncpointSessionHolder;
 import com.couchbase.syncpoint.model.SyncpointSubscription;
-import com.couchbase.touchdb.TDServer;
-import com.couchbase.touchdb.ektorp.TouchDBHttpClient;
-import com.couchbase.touchdb.router.TDURLStreamHandlerFactory;
+import com.couchbase.syncpoint.platform.Platform;
+import com.couchbase.syncpoint.platform.SyncpointLog;
 
 public class SyncpointClientImpl implements SyncpointClient {
 
     public static final String TAG = "SyncpointClient";
     public static final String LOCAL_CONTROL_DATABASE_NAME = "sp_control";
+    static final long FEED_POLL_INTERVAL_MS = 5000;
+    static final String FEED_CHECKPOINT_ID = "syncpoint-control-feed";
+    static final long MERGE_RETRY_INITIAL_DELAY_MS = 5000;
+    static final long MERGE_RETRY_MAX_DELAY_MS = 5 * 60 * 1000;
+    static final long INITIAL_SYNC_RETRY_INITIAL_DELAY_MS = 5000;
+    static final long INITIAL_SYNC_RETRY_MAX_DELAY_MS = 5 * 60 * 1000;
+
+    /**
+     * The last control changes feed sequence that was reconciled, kept in a _local doc.
+     */
+    public static class FeedCheckpoint {
+
+        public long seq;
+
+    }
 
     private CouchDbInstance localServer;
     private URL remoteServerURL;
     private String appId;
-    private SyncpointState state;
-    private SyncpointSession session;
+    private final SyncpointStateMachine stateMachine;
+    // replaced on the control thread, read by the control feed listener as well
+    private volatile SyncpointSession session;
+    private SyncpointSessionHolder sessionHolder;
     private CouchDbConnector localControlDatabase;
-    private Context applicationContext;
+    private ControlModelCache modelCache;
+    private LocalDocumentStore localDocuments;
+    private long savedCheckpoint = -1;
+    private ReconciliationScheduler reconciliationScheduler;
+    private SubscriptionReconciler reconciler;
+    private PairingWatcher pairingWatcher;
+    private InitialControlSync initialSync;
+    private int initialSyncFailures = 0;
+    private SyncpointMetrics.Gauge runningReplicationsGauge;
+    private final List<SyncpointClient.InitialSyncListener> initialSyncListeners = new CopyOnWriteArrayList<SyncpointClient.InitialSyncListener>();
+    private ChangesFeed controlChangesFeed;
+    private final SyncpointExecutors executors;
+    private ReplicationScheduler replicationScheduler;
+    private final Platform platform;
+    private RemoteHttpClientPool remotePool;
+    private final FutureTask<SyncpointClient> readyTask;
 
-    private static CouchDbInstance createLocalTouchDbInstance(Context context) {
-        TDURLStreamHandlerFactory.registerSelfIgnoreError();
-        String filesDir = context.getFilesDir().getAbsolutePath();
-        TDServer server = null;
-        try {
-            server = new TDServer(filesDir);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private final ConnectorCache.Listener databaseCreatedListener = new ConnectorCache.Listener() {
+
+        @Override
+        public void databaseCreated(final String databaseName) {
+            whenReady("Syncing opened channel", new Runnable() {
+
+                @Override
+                public void run() {
+                    // a deferred installation can sync now that its database exists
+                    for (SyncpointInstallation installation : session.getAllInstallations()) {
+                        if(databaseName.equals(installation.getLocalDbName())) {
+                            reconciliationScheduler.requestRun(installation.getId());
+                        }
+                    }
+                }
+            });
         }
-        HttpClient httpClient = new TouchDBHttpClient(server);
+    };
+
+    /**
+     * Returns a client straight away and opens the local server and restores the session in
+     * the background.  Calls made before the client is ready are queued and run once it is.
+     * Android apps usually go through AndroidSyncpoint.open() instead.
+     *
+     * @param listener told on the main thread when the client is ready, may be null
+     */
+    public static SyncpointClientImpl open(Platform platform, URL remoteServer, String syncpointAppId, SyncpointClient.ReadyListener listener) {
+        return new SyncpointClientImpl(platform, null, remoteServer, syncpointAppId, listener);
+    }
 
-        CouchDbInstance newLocalServer = new StdCouchDbInstance(httpClient);
-        return newLocalServer;
+    /**
+     * Like open(Platform, URL, String, ReadyListener), with an already open local server.
+     */
+    public static SyncpointClientImpl open(Platform platform, CouchDbInstance localServer, URL remoteServer, String syncpointAppId, SyncpointClient.ReadyListener listener) {
+        return new SyncpointClientImpl(platform, localServer, remoteServer, syncpointAppId, listener);
     }
 
-    public SyncpointClientImpl(Context context, URL remoteServer, String syncpointAppId) {
-        this(context, createLocalTouchDbInstance(context), remoteServer, syncpointAppId);
+    /**
+     * Opens the client and blocks until it is ready; prefer open().
+     */
+    public SyncpointClientImpl(Platform platform, URL remoteServer, String syncpointAppId) {
+        this(platform, null, remoteServer, syncpointAppId, null);
+        awaitReady();
     }
 
-    public SyncpointClientImpl(Context context, CouchDbInstance localServer, URL remoteServerURL, String syncpointAppId) {
-        this.applicationContext = context.getApplicationContext();
+    /**
+     * Opens the client and blocks until it is ready; prefer open().
+     */
+    public SyncpointClientImpl(Platform platform, CouchDbInstance localServer, URL remoteServerURL, String syncpointAppId) {
+        this(platform, localServer, remoteServerURL, syncpointAppId, null);
+        awaitReady();
+    }
+
+    private SyncpointClientImpl(Platform platform, CouchDbInstance localServer, URL remoteServerURL, String syncpointAppId, final SyncpointClient.ReadyListener listener) {
+        this.platform = platform;
         this.localServer = localServer;
         this.remoteServerURL = remoteServerURL;
         this.appId = syncpointAppId;
+        this.remotePool = RemoteHttpClientPool.acquire(remoteServerURL);
+        SyncpointLog.setLogger(platform.getLogger());
+        this.stateMachine = new SyncpointStateMachine(SyncpointState.INITIALIZING, platform.getClock());
+        this.executors = new SyncpointExecutors(platform.getScheduler().getCallbackExecutor());
+
+        reconciliationScheduler = new ReconciliationScheduler(executors.getControlExecutor(), new ReconciliationScheduler.Reconciliation() {
+
+            @Override
+            public void reconcile(Set<String> changedDocIds) {
+                getUpToDateWithSubscriptions(changedDocIds);
+            }
+
+            @Override
+            public void reconciledThrough(long sequence) {
+                saveFeedCheckpoint(sequence);
+            }
+        }, platform.getClock());
+
+        readyTask = new FutureTask<SyncpointClient>(new Callable<SyncpointClient>() {
+
+            @Override
+            public SyncpointClient call() throws Exception {
+                initialize();
+                return SyncpointClientImpl.this;
+            }
+        }) {
+
+            @Override
+            protected void done() {
+                if(listener == null || isCancelled()) {
+                    return;
+                }
+                executors.getCallbackExecutor().execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            listener.clientReady(get());
+                        } catch (ExecutionException e) {
+                            listener.clientFailed(e.getCause());
+                        } catch (InterruptedException e) {
+                            listener.clientFailed(e);
+                        }
+                    }
+                });
+            }
+        };
+        // the first task on the control thread, so everything queued after it sees a ready client
+        executors.getControlExecutor().execute(readyTask);
+    }
+
+    private void initialize() {
+        try {
+            if(localServer == null) {
+                localServer = platform.getDatabaseServerFactory().createLocalServer();
+            }
 
-        // Create the control database on the first run of the app.
-        localControlDatabase = localServer.createConnector(LOCAL_CONTROL_DATABASE_NAME, true);
+            // Create the control database on the first run of the app.
+            localControlDatabase = localServer.createConnector(LOCAL_CONTROL_DATABASE_NAME, true);
+            SyncpointViews.install(localControlDatabase);
+            modelCache = new ControlModelCache(localServer, localControlDatabase);
+            localDocuments = new LocalDocumentStore(localControlDatabase);
 
-        session = SyncpointSession.sessionInDatabase(applicationContext, localServer, localControlDatabase);
-        if(session == null) {
-            // if no session make one
-            session = SyncpointSession.makeSessionInDatabase(applicationContext, localServer, localControlDatabase, appId, remoteServerURL);
-            state = SyncpointState.UNAUTHENTICATED;
+            sessionHolder = SyncpointSessionHolder.getInstance(platform.getPreferences(), localServer, localControlDatabase);
+            sessionHolder.setModelCache(modelCache);
+            session = sessionHolder.getSession();
+            if(session == null) {
+                // if no session make one
+                session = SyncpointSession.makeSessionInDatabase(platform.getPreferences(), localServer, localControlDatabase, appId, remoteServerURL);
+            }
+            replicationScheduler = new ReplicationScheduler(localServer, new ReplicationRegistry(localServer), ReplicationScheduler.DEFAULT_MAX_CONCURRENT);
+            runningReplicationsGauge = new SyncpointMetrics.Gauge() {
+
+                @Override
+                public long getValue() {
+                    return replicationScheduler.getRegistry().getRunningCount();
+                }
+            };
+            SyncpointMetrics.getInstance().registerGauge(SyncpointMetrics.REPLICATIONS_RUNNING, runningReplicationsGauge);
+            reconciler = new SubscriptionReconciler(sessionHolder, modelCache, replicationScheduler, ConnectorCache.forServer(localServer));
+            ConnectorCache.forServer(localServer).addListener(databaseCreatedListener);
+        } catch (RuntimeException e) {
+            SyncpointLog.e(TAG, "Unable to open Syncpoint client", e);
+            stateMachine.transitionTo(SyncpointState.HAS_ERROR);
+            throw e;
         }
+
+        stateMachine.transitionTo(session.isPaired() ? SyncpointState.ACTIVATING : SyncpointState.UNAUTHENTICATED);
         if(session.isPaired()) {
-            Log.v(TAG, "Session is active");
+            SyncpointLog.v(TAG, "Session is active");
             connectToControlDB();
         }
         else if(session.isReadyToPair()) {
             if(session.getError() != null) {
-                Log.v(TAG, String.format("Session has error: %s", session.getError()));
-                state = SyncpointState.HAS_ERROR;
+                SyncpointLog.v(TAG, String.format("Session has error: %s", session.getError()));
+                stateMachine.transitionTo(SyncpointState.HAS_ERROR);
             }
-            Log.v(TAG, String.format("Begin pairing with cloud: %s", remoteServerURL.toExternalForm()));
+            SyncpointLog.v(TAG, String.format("Begin pairing with cloud: %s", remoteServerURL.toExternalForm()));
             beginPairing();
         }
     }
 
+    /**
+     * Completes once the local server is open and the session restored.
+     */
+    public Future<SyncpointClient> getReadyFuture() {
+        return readyTask;
+    }
+
+    public boolean isReady() {
+        return readyTask.isDone() && !hasFailedToOpen();
+    }
+
+    private boolean hasFailedToOpen() {
+        try {
+            readyTask.get();
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (CancellationException e) {
+            // shut down before it was opened
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    /**
+     * Blocks until the client is ready.
+     */
+    public void awaitReady() {
+        try {
+            readyTask.get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IllegalStateException("Unable to open Syncpoint client", e.getCause());
+        } catch (CancellationException e) {
+            throw new IllegalStateException("Syncpoint client was shut down", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while opening Syncpoint client", e);
+        }
+    }
+
+    @Override
+    public SyncpointState getState() {
+        return stateMachine.getState();
+    }
+
+    @Override
+    public SyncpointStateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    @Override
+    public void addStateListener(SyncpointStateMachine.Listener listener, Executor executor) {
+        stateMachine.addListener(listener, executor);
+    }
+
+    @Override
+    public void removeStateListener(SyncpointStateMachine.Listener listener) {
+        stateMachine.removeListener(listener);
+    }
+
+    /**
+     * Runs a task on the control thread once the client is ready, skipping it if the client
+     * could not be opened.
+     */
+    private void whenReady(final String name, final Runnable task) {
+        executors.runOnControl(name, new Runnable() {
+
+            @Override
+            public void run() {
+                if(hasFailedToOpen()) {
+                    SyncpointLog.w(TAG, String.format("Skipping %s, the client could not be opened", name));
+                    return;
+                }
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * Sets how long control database changes are collected before reconciling, and the
+     * longest a change may wait during a continuous burst of changes.
+     */
+    public void setReconciliationDelays(long quietPeriodMs, long maxLatencyMs) {
+        reconciliationScheduler.setQuietPeriod(quietPeriodMs);
+        reconciliationScheduler.setMaxLatency(maxLatencyMs);
+    }
+
+    @Override
+    public void setChannelPriority(final String channelName, final int priority) {
+        whenReady("Setting channel priority", new Runnable() {
+
+            @Override
+            public void run() {
+                replicationScheduler.setChannelPriority(channelName, priority);
+            }
+        });
+    }
+
+    /**
+     * When set, channels whose local database has never been opened are not synced until
+     * the app first opens it, so an account with many channels doesn't create a database for
+     * each of them at startup.
+     */
+    public void setDeferUntouchedChannels(final boolean defer) {
+        whenReady("Setting deferred channel sync", new Runnable() {
+
+            @Override
+            public void run() {
+                reconciler.setDeferUntouched(defer);
+            }
+        });
+    }
+
+    /**
+     * Sets how many channel replications may be catching up or starting at once.
+     */
+    public void setMaxConcurrentReplications(final int maxConcurrent) {
+        whenReady("Setting concurrent replications", new Runnable() {
+
+            @Override
+            public void run() {
+                replicationScheduler.setMaxConcurrent(maxConcurrent);
+            }
+        });
+    }
+
     boolean isActivated() {
-        return state.compareTo(SyncpointState.ACTIVATING) > 0;
+        return stateMachine.isIn(SyncpointState.UPDATING_CONTROL_DATABASE, SyncpointState.READY);
     }
 
-    public SyncpointChannel getMyChannel(String channelName) {
+    /**
+     * Returns the channel of this user with the given name, making it if needed.  Blocks
+     * until the client is ready, and runs on the control thread so it is ordered with
+     * everything else the client does.  Must not be called on the main thread, see
+     * getMyChannel(String, ChannelListener).
+     */
+    @Override
+    public SyncpointChannel getMyChannel(final String channelName) {
+        awaitReady();
+        Callable<SyncpointChannel> lookup = new Callable<SyncpointChannel>() {
+
+            @Override
+            public SyncpointChannel call() {
+                return lookupMyChannel(channelName);
+            }
+        };
+        try {
+            if(executors.isControlThread()) {
+                return lookup.call();
+            }
+            return executors.getControlExecutor().submit(lookup).get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (CancellationException e) {
+            throw new IllegalStateException("Syncpoint client was shut down", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(String.format("Interrupted while getting channel %s", channelName), e);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Queues the lookup behind the opening of the client and tells the listener on the main
+     * thread, so it never blocks the caller.
+     */
+    @Override
+    public void getMyChannel(final String channelName, final SyncpointClient.ChannelListener listener) {
+        executors.runOnControl("Getting channel", new Runnable() {
+
+            @Override
+            public void run() {
+                SyncpointChannel channel = null;
+                Throwable error = null;
+                try {
+                    // the client was opened by the first task on this thread
+                    awaitReady();
+                    channel = lookupMyChannel(channelName);
+                    if(channel == null) {
+                        error = new IllegalStateException(String.format("Unable to make channel %s", channelName));
+                    }
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+                final SyncpointChannel result = channel;
+                final Throwable failure = error;
+                executors.getCallbackExecutor().execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if(failure != null) {
+                            listener.channelFailed(failure);
+                        } else {
+                            listener.channelReady(result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private SyncpointChannel lookupMyChannel(String channelName) {
         SyncpointChannel channel = session.getMyChannel(channelName);
         if(channel == null) {
             channel = session.makeChannel(channelName);
-            if(channel == null) {
-                return null;
-            }
         }
         return channel;
     }
 
     @Override
-    public void pairSession(String pairingType, String pairingToken) {
-        if(session.isPaired()) {
-            return;
+    public SyncpointMetrics getMetrics() {
+        return SyncpointMetrics.getInstance();
+    }
+
+    @Override
+    public void addInitialSyncListener(SyncpointClient.InitialSyncListener listener) {
+        initialSyncListeners.add(listener);
+    }
+
+    @Override
+    public void removeInitialSyncListener(SyncpointClient.InitialSyncListener listener) {
+        initialSyncListeners.remove(listener);
+    }
+
+    @Override
+    public void pairSession(final String pairingType, final String pairingToken) {
+        whenReady("Pairing session", new Runnable() {
+
+            @Override
+            public void run() {
+                if(session.isPaired()) {
+                    return;
+                }
+                session.setPairingType(pairingType);
+                session.setPairingToken(pairingToken);
+                session.saveLocalState();
+                if(session.isReadyToPair()) {
+                    beginPairing();
+                } else {
+                    stateMachine.transitionTo(SyncpointState.UNAUTHENTICATED);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops watching the control database and shuts down the client's threads.
+     */
+    public void shutdown() {
+        readyTask.cancel(false);
+        if(pairingWatcher != null) {
+            pairingWatcher.cancel();
         }
-        session.setPairingType(pairingType);
-        session.setPairingToken(pairingToken);
-        localControlDatabase.update(session);
-        if(session.isReadyToPair()) {
-            beginPairing();
-        } else {
-            state = SyncpointState.UNAUTHENTICATED;
+        if(initialSync != null) {
+            initialSync.cancel();
+        }
+        if(controlChangesFeed != null) {
+            controlChangesFeed.cancel();
+        }
+        if(replicationScheduler != null) {
+            replicationScheduler.shutdown();
+            SyncpointMetrics.getInstance().unregisterGauge(SyncpointMetrics.REPLICATIONS_RUNNING, runningReplicationsGauge);
+        }
+        if(localServer != null) {
+            ConnectorCache.forServer(localServer).removeListener(databaseCreatedListener);
+        }
+        executors.shutdown();
+        synchronized (this) {
+            if(remotePool != null) {
+                remotePool.release();
+                remotePool = null;
+            }
         }
     }
 
@@ -147,245 +548,395 @@ public class SyncpointClientImpl implements SyncpointClient {
     //************************************************
 
     void pairingDidComplete(final CouchDbConnector remote, final PairingUser userDoc) {
+        SyncpointMetrics.getInstance().endSpan(SyncpointMetrics.PAIRING_MS);
+        stateMachine.transitionTo(SyncpointState.ACTIVATING);
         session.setState("paired");
         session.setOwnerId(userDoc.getOwnerId());
         session.setControlDatabase(userDoc.getControlDatabase());
+        session.updateResolvingConflicts(executors.getControlExecutor());
 
-        EktorpAsyncTask task = new EktorpAsyncTask() {
-
-            @Override
-            protected void doInBackground() {
-                // TODO Auto-generated method stub
-                localControlDatabase.update(session);
-            }
-
-            @Override
-            protected void onSuccess() {
-                Log.v(TAG, "Device is now paired");
-                //FIXME this delete is not working, investigate later
-                //remote.delete(userDoc);
-                connectToControlDB();
-            }
-        };
-        task.execute();
+        SyncpointLog.v(TAG, "Device is now paired");
+        //FIXME this delete is not working, investigate later
+        //remote.delete(userDoc);
+        connectToControlDB();
     }
 
     void beginPairing() {
-        Log.v(TAG, "Pairing session...");
+        SyncpointLog.v(TAG, "Pairing session...");
         if(session.isReadyToPair()) {
+            stateMachine.transitionTo(SyncpointState.AUTHENTICATING);
+            SyncpointMetrics.getInstance().beginSpan(SyncpointMetrics.PAIRING_MS);
             session.clearState();
             savePairingUserToRemote();
         }
     }
 
+    /**
+     * Saves the pairing user on the I/O pool, then waits for pairing on the control thread.
+     */
     void savePairingUserToRemote() {
-        HttpClient anonRemoteHttpClient = new AndroidHttpClient.Builder().url(remoteServerURL).maxConnections(100).build();
-        CouchDbInstance anonRemote = new StdCouchDbInstance(anonRemoteHttpClient);
-
-        //hard-coded to use "_users" for now because Ektorp doesn't have an interface to _session
-        CouchDbConnector anonUserDb = anonRemote.createConnector("_users", false);
         final PairingUser pairingUser = session.getPairingUser();
-        anonUserDb.update(pairingUser);
+        final String username = session.getPairingCreds().getUsername();
+        final String password = session.getPairingCreds().getPassword();
+        final RemoteHttpClientPool remotePool = this.remotePool;
+        executors.runOnIo("Saving pairing user", new Runnable() {
 
-        //now connect as this user
-        HttpClient remoteHttpClient = new AndroidHttpClient.Builder().url(remoteServerURL).username(session.getPairingCreds().getUsername()).password(session.getPairingCreds().getPassword()).maxConnections(100).build();
-        CouchDbInstance remote = new StdCouchDbInstance(remoteHttpClient);
+            @Override
+            public void run() {
+                try {
+                    HttpClient anonRemoteHttpClient = remotePool.getClient();
+                    CouchDbInstance anonRemote = new StdCouchDbInstance(anonRemoteHttpClient);
 
-        final CouchDbConnector userDb = remote.createConnector("_users", false);
+                    //hard-coded to use "_users" for now because Ektorp doesn't have an interface to _session
+                    CouchDbConnector anonUserDb = anonRemote.createConnector("_users", false);
+                    anonUserDb.update(pairingUser);
 
-        EktorpAsyncTask task = new EktorpAsyncTask() {
+                    //now connect as this user
+                    HttpClient remoteHttpClient = remotePool.getClient(username, password);
+                    CouchDbInstance remote = new StdCouchDbInstance(remoteHttpClient);
 
-            PairingUser result = null;
+                    final CouchDbConnector userDb = remote.createConnector("_users", false);
+                    final PairingUser savedUser = userDb.get(PairingUser.class, pairingUser.getId());
+                    executors.runOnControl("Waiting for pairing", new Runnable() {
 
-            @Override
-            protected void doInBackground() {
-                result = userDb.get(PairingUser.class, pairingUser.getId());
+                        @Override
+                        public void run() {
+                            waitForPairingToComplete(userDb, savedUser);
+                        }
+                    });
+                } catch (DbAccessException e) {
+                    SyncpointLog.e(TAG, "Unable to save the pairing user", e);
+                    pairingDidFail("Unable to save the pairing user");
+                }
             }
+        });
+    }
+
+    private void pairingDidFail(final String reason) {
+        executors.runOnControl("Failing pairing", new Runnable() {
 
             @Override
-            protected void onSuccess() {
-                waitForPairingToComplete(userDb, result);
+            public void run() {
+                SyncpointLog.e(TAG, reason);
+                SyncpointMetrics.getInstance().cancelSpan(SyncpointMetrics.PAIRING_MS);
+                stateMachine.transitionTo(SyncpointState.HAS_ERROR);
             }
-
-        };
-
-        task.execute();
+        });
     }
 
     void waitForPairingToComplete(final CouchDbConnector remote, final PairingUser userDoc) {
-        Log.v(TAG, "Waiting for pairing to complete...");
-        Looper l = Looper.getMainLooper();
-        Handler h = new Handler(l);
-        h.postDelayed(new Runnable() {
+        if(pairingWatcher != null) {
+            pairingWatcher.cancel();
+        }
+        pairingWatcher = new PairingWatcher(remote, userDoc.getId(), new PairingWatcher.Listener() {
 
             @Override
-            public void run() {
-                Log.v(TAG, "Checking to see if pairing completed...");
-                PairingUser user = remote.get(PairingUser.class, userDoc.getId());
-                if("paired".equals(user.getPairingState())) {
-                    pairingDidComplete(remote, user);
-                } else {
-                    Log.v(TAG, "Pairing state is stuck at " + user.getPairingState());
-                    waitForPairingToComplete(remote, user);
-                }
+            public void pairingDidComplete(final CouchDbConnector remote, final PairingUser user) {
+                executors.runOnControl("Completing pairing", new Runnable() {
+
+                    @Override
+                    public void run() {
+                        SyncpointClientImpl.this.pairingDidComplete(remote, user);
+                    }
+                });
             }
-        }, 3000);
 
+            @Override
+            public void pairingDidFail(String reason) {
+                SyncpointClientImpl.this.pairingDidFail(reason);
+            }
+        }, PairingWatcher.DEFAULT_TIMEOUT_MS);
+        pairingWatcher.start(executors.getLongRunningExecutor());
     }
 
-    private ReplicationCommand pullControlData(String databaseName, boolean continuous) {
-        URL remoteControlURL;
+    private String remoteControlURL(String databaseName) {
         try {
-            remoteControlURL = new URL(remoteServerURL, databaseName);
+            return new URL(remoteServerURL, databaseName).toExternalForm();
         } catch (MalformedURLException e) {
             throw new IllegalStateException(e);
         }
-        return new ReplicationCommand.Builder()
-        .source(remoteControlURL.toExternalForm())
-        .target(localControlDatabase.getDatabaseName())
-        .continuous(continuous)
-        .build();
     }
 
-    private ReplicationCommand pushControlData(String databaseName, boolean continuous) {
-        URL remoteControlURL;
-        try {
-            remoteControlURL = new URL(remoteServerURL, databaseName);
-        } catch (MalformedURLException e) {
-            throw new IllegalStateException(e);
-        }
-        return new ReplicationCommand.Builder()
-        .source(localControlDatabase.getDatabaseName())
-        .target(remoteControlURL.toExternalForm())
-        .continuous(continuous)
-        .build();
+    private void startControlReplications(String databaseName) {
+        // scheduled ahead of any channel, and skipped if they are already running
+        replicationScheduler.scheduleControlSync(remoteControlURL(databaseName), localControlDatabase.getDatabaseName());
     }
 
     void connectToControlDB() {
-        Log.v(TAG, String.format("connectToControlDB %s", localControlDatabase));
+        SyncpointLog.v(TAG, String.format("connectToControlDB %s", localControlDatabase));
         if(!session.isControlDbSynced()) {
+            stateMachine.transitionTo(SyncpointState.UPDATING_CONTROL_DATABASE);
             doInitialSyncOfControlDB();
         } else {
+            // a merge that didn't complete last time is finished now
+            mergeExistingChannelsOrRetry(0);
             didInitialSyncOfControlDB();
         }
     }
 
     void doInitialSyncOfControlDB() {
-        Log.v(TAG, "doInitialSyncOfControlDB");
-        final ReplicationCommand controlPull = pullControlData(session.getControlDatabase(), false);
-        EktorpAsyncTask controlPullTask = new EktorpAsyncTask() {
+        SyncpointLog.v(TAG, "doInitialSyncOfControlDB");
+        initialSync = new InitialControlSync(localServer, localControlDatabase, remoteControlURL(session.getControlDatabase()),
+                localDocuments, executors, new InitialControlSync.Listener() {
+
+            @Override
+            public void initialSyncProgress(final long docsTransferred, final long bytesTransferred) {
+                SyncpointLog.v(TAG, String.format("Initial control sync has %d docs, %d bytes so far", docsTransferred, bytesTransferred));
+                initialControlSyncProgressed();
+                for (final SyncpointClient.InitialSyncListener listener : initialSyncListeners) {
+                    executors.getCallbackExecutor().execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            listener.initialSyncProgress(docsTransferred, bytesTransferred);
+                        }
+                    });
+                }
+            }
 
             @Override
-            protected void doInBackground() {
-                //non-continuous replication will block till completion
-                localServer.replicate(controlPull);
+            public void initialSyncFailed(Throwable error) {
+                initialControlSyncFailed(error);
             }
 
             @Override
-            protected void onSuccess() {
+            public void initialSyncFinished() {
+                initialSync = null;
+                initialSyncFailures = 0;
                 //when the initial controlPull stops running, after doInitialSyncOfControlDB
-                mergeExistingChannels();
+                mergeExistingChannelsOrRetry(0);
                 didInitialSyncOfControlDB();
+                for (final SyncpointClient.InitialSyncListener listener : initialSyncListeners) {
+                    executors.getCallbackExecutor().execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            listener.initialSyncFinished();
+                        }
+                    });
+                }
             }
-        };
-        controlPullTask.execute();
+        });
+        try {
+            initialSync.start();
+        } catch (DbAccessException e) {
+            SyncpointLog.e(TAG, "Unable to start the initial control sync", e);
+            initialControlSyncFailed(e);
+        }
+    }
+
+    /**
+     * Puts the client in HAS_ERROR and starts the initial sync again after a delay that
+     * doubles with every failure.  The pull continues from where it stopped.
+     */
+    void initialControlSyncFailed(final Throwable error) {
+        initialSync = null;
+        stateMachine.transitionTo(SyncpointState.HAS_ERROR);
+        for (final SyncpointClient.InitialSyncListener listener : initialSyncListeners) {
+            executors.getCallbackExecutor().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    listener.initialSyncFailed(error);
+                }
+            });
+        }
+        long delay = Math.min(INITIAL_SYNC_RETRY_INITIAL_DELAY_MS << Math.min(initialSyncFailures, 16), INITIAL_SYNC_RETRY_MAX_DELAY_MS);
+        initialSyncFailures++;
+        SyncpointLog.w(TAG, String.format("Retrying the initial control sync in %d ms", delay));
+        executors.runOnControl("Retrying initial control sync", new Runnable() {
+
+            @Override
+            public void run() {
+                if(initialSync != null || session.isControlDbSynced()) {
+                    return;
+                }
+                stateMachine.transitionTo(SyncpointState.UPDATING_CONTROL_DATABASE);
+                doInitialSyncOfControlDB();
+            }
+        }, delay);
+    }
+
+    /**
+     * Reconciles what has arrived so far, so channels can start syncing before the whole
+     * control database is here.  The docs came in without passing the changes feed, so the
+     * model cache has to read them again.  Skipped while there are channels from before
+     * pairing, because merging them needs the complete set of paired channels.  The owner's
+     * channels that are not paired yet don't hold it up.
+     */
+    void initialControlSyncProgressed() {
+        modelCache.invalidate();
+        if(!session.getChannelsFromBeforePairing().isEmpty()) {
+            return;
+        }
+        reconciliationScheduler.requestFullRun();
     }
 
     void didInitialSyncOfControlDB() {
-        Log.v(TAG, "didInitialSyncOfControlDB");
+        SyncpointLog.v(TAG, "didInitialSyncOfControlDB");
+        SyncpointMetrics.getInstance().beginSpan(SyncpointMetrics.CONTROL_SYNCED_TO_FIRST_CHANNEL_SYNC_MS);
         // Now we can sync continuously & push
-        ReplicationCommand controlPull = pullControlData(session.getControlDatabase(), true);
-        localServer.replicate(controlPull);
-        ReplicationCommand controlPush = pushControlData(session.getControlDatabase(), true);
-        localServer.replicate(controlPush);
-        session.didFirstSyncOfControlDB();
-        Looper l = Looper.getMainLooper();
-        Handler h = new Handler(l);
-        h.postDelayed(new Runnable() {
+        startControlReplications(session.getControlDatabase());
+        if(!session.isControlDbSynced()) {
+            session.didFirstSyncOfControlDB();
+        }
+        stateMachine.transitionTo(SyncpointState.READY);
+        executors.runOnControl("Observing control database", new Runnable() {
 
             @Override
             public void run() {
                 // switched the order here from iOS, appeared i was seeing a race-condition
                 // where i missed seeing changes
-                observeControlDatabase();
-                getUpToDateWithSubscriptions();
+                long resyncedThrough = observeControlDatabase();
+                if(resyncedThrough >= 0) {
+                    reconciliationScheduler.requestFullRun(resyncedThrough);
+                } else {
+                    // the feed replays what changed since the checkpoint, but the reconciler
+                    // starts out empty in every process
+                    reconciliationScheduler.requestFullRun();
+                }
             }
         }, 1000);
     }
 
     void getUpToDateWithSubscriptions() {
-        Log.v(TAG, "getUpToDateWithSubscriptions");
-        // Make installations for any subscriptions that don't have one:
-        List<SyncpointSubscription> installedSubscriptions = session.getInstalledSubscriptions();
-        List<SyncpointSubscription> activeSubscriptions = session.getActiveSubscriptions();
-        for (SyncpointSubscription subscription : activeSubscriptions) {
-            subscription.attach(localServer, localControlDatabase);
-            if(!installedSubscriptions.contains(subscription)) {
-                Log.v(SyncpointClientImpl.TAG, String.format("Making installation db for %s", subscription));
-                subscription.makeInstallation(applicationContext, null);  // TODO: Report error
-            }
-        }
-
-        //again this part of the implementation differs because we just
-        //have channel ids and need to load the channels
-        Map<String, SyncpointChannel> channelMap = new HashMap<String, SyncpointChannel>();
-        List<SyncpointChannel> channels = (List<SyncpointChannel>)SyncpointModelFactory.getModelsOfType(localControlDatabase, "channel", SyncpointChannel.class);
-        for (SyncpointChannel channel : channels) {
-            channel.attach(localServer, localControlDatabase);
-            channelMap.put(channel.getId(), channel);
-        }
-
-
-        // Sync all installations whose channels are ready:
-        List<SyncpointInstallation> allInstallations = session.getAllInstallations();
-        Log.v(TAG, String.format("There are %d installations here", allInstallations.size()));
-        for (SyncpointInstallation installation : allInstallations) {
-            SyncpointChannel channel = channelMap.get(installation.getChannelId());
-            if(channel == null) {
-                Log.e(TAG, String.format("Installation %s references missing channel %s", installation, channel));
-            } else if(channel.isReady()) {
-                Log.v(TAG, String.format("Channel %s is ready, calling sync", channel.getName()));
-                installation.sync(session, channel);
-            } else {
-                Log.v(TAG, String.format("Channel %s is not ready", channel.getName()));
-            }
-
-        }
-    }
-
-    void mergeExistingChannels() {
-        Log.v(TAG, "mergeExistingChannels");
-        List<SyncpointChannel> pairedChannels = session.getMyChannels();
-        List<SyncpointChannel> unpairedChannels = session.getUnpairedChannels();
-        boolean matched = false;
-        for (SyncpointChannel unpaired : unpairedChannels) {
-            matched = false;
-            for (SyncpointChannel paired : pairedChannels) {
-                if(paired.getName().equals(unpaired.getName())) {
-                    matched = true;
-                    mergeChannel(unpaired, paired);
+        getUpToDateWithSubscriptions(null);
+    }
+
+    /**
+     * Makes installations for active subscriptions and syncs installations whose channels are
+     * ready, looking only at the given changed documents unless changedDocIds is null.  A full
+     * pass also restarts the control database replications if they have stopped.
+     */
+    void getUpToDateWithSubscriptions(Set<String> changedDocIds) {
+        SyncpointLog.v(TAG, "getUpToDateWithSubscriptions");
+        reconciler.reconcile(changedDocIds);
+        if(changedDocIds == null && session.isControlDbSynced()) {
+            startControlReplications(session.getControlDatabase());
+        }
+    }
+
+    /**
+     * Merges the channels made before pairing, trying again later if some writes failed.
+     */
+    void mergeExistingChannelsOrRetry(final int failures) {
+        boolean complete;
+        try {
+            complete = mergeExistingChannels();
+        } catch (DbAccessException e) {
+            SyncpointLog.e(TAG, "Unable to merge existing channels", e);
+            complete = false;
+        }
+        if(complete) {
+            if(failures > 0) {
+                reconciliationScheduler.requestFullRun();
+            }
+            return;
+        }
+        long delay = Math.min(MERGE_RETRY_INITIAL_DELAY_MS << Math.min(failures, 16), MERGE_RETRY_MAX_DELAY_MS);
+        SyncpointLog.w(TAG, String.format("Merge of existing channels is incomplete, retrying in %d ms", delay));
+        executors.runOnControl("Merging existing channels", new Runnable() {
+
+            @Override
+            public void run() {
+                mergeExistingChannelsOrRetry(failures + 1);
+            }
+        }, delay);
+    }
+
+    /**
+     * Moves the channels made before pairing over to the paired owner.  Channels are matched
+     * by name.  The subscriptions and installations are moved first, in one _bulk_docs
+     * request, and only once all of them are written are the channels moved or deleted in a
+     * second one.  Running the merge again after a failure picks up where it stopped, and no
+     * subscription is left pointing at a deleted channel.
+     *
+     * @return false if some of the writes failed, the failures are logged
+     */
+    boolean mergeExistingChannels() {
+        SyncpointLog.v(TAG, "mergeExistingChannels");
+        List<SyncpointChannel> unpairedChannels = session.getChannelsFromBeforePairing();
+        if(unpairedChannels.isEmpty()) {
+            return true;
+        }
+        Map<String, SyncpointChannel> pairedChannels = new HashMap<String, SyncpointChannel>();
+        for (SyncpointChannel paired : session.getMyChannels()) {
+            if(!pairedChannels.containsKey(paired.getName())) {
+                pairedChannels.put(paired.getName(), paired);
+            }
+        }
+        Map<String, SyncpointSubscription> subscriptionsByChannel = new HashMap<String, SyncpointSubscription>();
+        for (SyncpointSubscription subscription : session.getAllSubscriptions()) {
+            if(!subscriptionsByChannel.containsKey(subscription.getChannelId())) {
+                subscriptionsByChannel.put(subscription.getChannelId(), subscription);
+            }
+        }
+        Map<String, SyncpointInstallation> installationsByChannel = new HashMap<String, SyncpointInstallation>();
+        for (SyncpointInstallation installation : session.getAllInstallations()) {
+            if(!installationsByChannel.containsKey(installation.getChannelId())) {
+                installationsByChannel.put(installation.getChannelId(), installation);
+            }
+        }
+
+        ControlDatabaseBatch batch = ControlDatabaseBatch.begin(localControlDatabase, modelCache);
+        try {
+            for (SyncpointChannel unpaired : unpairedChannels) {
+                SyncpointChannel paired = pairedChannels.get(unpaired.getName());
+                if(paired != null && !paired.getId().equals(unpaired.getId())) {
+                    mergeChannel(unpaired, paired, subscriptionsByChannel, installationsByChannel);
                 }
             }
-            if(!matched) {
-                unpaired.setState("new");
-                unpaired.setOwnerId(session.getOwnerId());
-                unpaired.update();
+            if(!batch.commit().isEmpty()) {
+                return false;
             }
+        } finally {
+            batch.end();
+        }
+
+        batch = ControlDatabaseBatch.begin(localControlDatabase, modelCache);
+        try {
+            for (SyncpointChannel unpaired : unpairedChannels) {
+                SyncpointChannel paired = pairedChannels.get(unpaired.getName());
+                if(paired != null && paired.getId().equals(unpaired.getId())) {
+                    continue;
+                }
+                if(paired != null) {
+                    unpaired.delete();
+                } else {
+                    unpaired.setState("new");
+                    unpaired.setOwnerId(session.getOwnerId());
+                    unpaired.update();
+                }
+            }
+            return batch.commit().isEmpty();
+        } finally {
+            batch.end();
         }
     }
 
-    void mergeChannel(SyncpointChannel unpaired, SyncpointChannel paired) {
+    /**
+     * Moves the subscription and installation of an unpaired channel over to the paired
+     * channel of the same name.  The unpaired channel itself is left for the caller.
+     */
+    void mergeChannel(SyncpointChannel unpaired, SyncpointChannel paired,
+            Map<String, SyncpointSubscription> subscriptionsByChannel,
+            Map<String, SyncpointInstallation> installationsByChannel) {
 
-        SyncpointSubscription unpairedSub = unpaired.getSubscription();
-        SyncpointSubscription pairedSub = paired.getSubscription();
-        SyncpointInstallation unpairedInst = unpaired.getInstallation(applicationContext);
+        if(unpaired.getId().equals(paired.getId())) {
+            return;
+        }
+        SyncpointSubscription unpairedSub = subscriptionsByChannel.get(unpaired.getId());
+        SyncpointSubscription pairedSub = subscriptionsByChannel.get(paired.getId());
+        SyncpointInstallation unpairedInst = installationsByChannel.get(unpaired.getId());
 
         if(pairedSub != null) {
             if(unpairedInst != null) {
                 unpairedInst.setSubscriptionId(pairedSub.getId());
             }
-            unpairedSub.delete();
-        } else {
+            if(unpairedSub != null) {
+                unpairedSub.delete();
+            }
+        } else if(unpairedSub != null) {
             unpairedSub.setChannelId(paired.getId());
             unpairedSub.setOwnerId(paired.getOwnerId());
             unpairedSub.update();
@@ -396,38 +947,128 @@ public class SyncpointClientImpl implements SyncpointClient {
             unpairedInst.setChannelId(paired.getId());
             unpairedInst.update();
         }
-        unpaired.delete();
     }
 
-    void observeControlDatabase() {
-        ChangesCommand changesCommand = new ChangesCommand.Builder().continuous(true).build();
-        ChangesFeedAsyncTask asyncChangesTask = new ChangesFeedAsyncTask(localControlDatabase, changesCommand) {
+    /**
+     * Starts the control changes feed where the last run left off.
+     *
+     * @return the sequence everything must be resynced through, or -1 if the saved checkpoint
+     * was used
+     */
+    long observeControlDatabase() {
+        long updateSeq = modelCache.load();
+        long since = updateSeq;
+        long resyncThrough = updateSeq;
+        FeedCheckpoint checkpoint = readFeedCheckpoint();
+        if(checkpoint == null) {
+            SyncpointLog.v(TAG, "No control feed checkpoint, resyncing everything");
+        } else if(checkpoint.seq > updateSeq) {
+            // the database was replaced since the checkpoint was saved
+            SyncpointLog.w(TAG, String.format("Control feed checkpoint %d is past the end of the database (%d), resyncing everything", checkpoint.seq, updateSeq));
+        } else {
+            SyncpointLog.v(TAG, String.format("Resuming control feed from %d (database is at %d)", checkpoint.seq, updateSeq));
+            since = checkpoint.seq;
+            savedCheckpoint = checkpoint.seq;
+            resyncThrough = -1;
+        }
+        ChangesCommand.Builder builder = new ChangesCommand.Builder().continuous(true).since(since);
+        String filter = SyncpointViews.controlFilter(localControlDatabase);
+        if(filter != null) {
+            // only the docs reconciliation looks at
+            builder.filter(filter).param("session_id", session.getId());
+        }
+        ChangesCommand changesCommand = builder.build();
+        if(controlChangesFeed != null) {
+            controlChangesFeed.cancel();
+        }
+        final ChangesFeed feed = localControlDatabase.changesFeed(changesCommand);
+        controlChangesFeed = feed;
+        executors.runLongRunning("Control changes listener", new Runnable() {
 
             @Override
-            protected void handleDocumentChange(DocumentChange change) {
-                Log.v(TAG, "I see control db change");
-                controlDatabaseChanged();
+            public void run() {
+                try {
+                    while(feed.isAlive()) {
+                        // wake up now and then so a cancelled feed ends the loop
+                        DocumentChange change = feed.next(FEED_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                        if(change == null) {
+                            continue;
+                        }
+                        SyncpointMetrics.getInstance().counter(SyncpointMetrics.CONTROL_FEED_EVENTS).increment();
+                        if(modelCache.isLocalEcho(change.getId(), change.getRevision())) {
+                            // we wrote this ourselves, and already acted on it
+                            SyncpointMetrics.getInstance().counter(SyncpointMetrics.CONTROL_FEED_ECHOES).increment();
+                            controlDatabaseEchoed(change.getSequence());
+                            continue;
+                        }
+                        SyncpointLog.v(TAG, "I see control db change");
+                        modelCache.documentChanged(change.getId(), change.getRevision(), change.isDeleted());
+                        if(sessionHolder.documentChanged(change.getId(), change.getRevision())) {
+                            sessionChanged();
+                        }
+                        controlDatabaseChanged(change.getId(), change.getSequence());
+                    }
+                } catch (InterruptedException e) {
+                    SyncpointLog.v(TAG, "Control changes listener stopped");
+                }
             }
-        };
-        asyncChangesTask.execute();
-        Log.v(TAG, "Started control changes listener");
+        });
+        SyncpointLog.v(TAG, "Started control changes listener");
+        return resyncThrough;
+    }
+
+    private FeedCheckpoint readFeedCheckpoint() {
+        try {
+            return localDocuments.get(FEED_CHECKPOINT_ID, FeedCheckpoint.class);
+        } catch (DbAccessException e) {
+            SyncpointLog.e(TAG, "Unable to read the control feed checkpoint", e);
+            return null;
+        }
     }
 
-    void controlDatabaseChanged() {
+    void saveFeedCheckpoint(long sequence) {
+        if(sequence <= savedCheckpoint) {
+            return;
+        }
+        FeedCheckpoint checkpoint = new FeedCheckpoint();
+        checkpoint.seq = sequence;
+        try {
+            localDocuments.put(FEED_CHECKPOINT_ID, checkpoint);
+            savedCheckpoint = sequence;
+        } catch (DbAccessException e) {
+            SyncpointLog.e(TAG, String.format("Unable to save the control feed checkpoint %d", sequence), e);
+        }
+    }
+
+    void sessionChanged() {
+        executors.runOnControl("Refreshing session", new Runnable() {
+
+            @Override
+            public void run() {
+                SyncpointSession current = sessionHolder.getSession();
+                if(current != null) {
+                    SyncpointLog.v(TAG, String.format("Session changed to %s", current.getRevision()));
+                    session = current;
+                }
+            }
+        });
+    }
+
+    void controlDatabaseChanged(String docId, long sequence) {
         // if we are done with first ever sync
         if(session.isControlDbSynced()) {
-            Log.v(TAG, "Control DB changed");
-            // collect 1 second of changes before acting
-            // todo can we make these calls all collapse into one?
-            Looper l = Looper.getMainLooper();
-            Handler h = new Handler(l);
-            h.postDelayed(new Runnable() {
+            SyncpointLog.v(TAG, "Control DB changed");
+            reconciliationScheduler.requestRun(docId, sequence);
+        }
+    }
 
-                @Override
-                public void run() {
-                    getUpToDateWithSubscriptions();
-                }
-            }, 1000);
+    /**
+     * A change we made ourselves needs no reconciliation, but the feed checkpoint still
+     * moves past it.
+     */
+    void controlDatabaseEchoed(long sequence) {
+        if(session.isControlDbSynced()) {
+            reconciliationScheduler.skippedThrough(sequence);
         }
     }
 }
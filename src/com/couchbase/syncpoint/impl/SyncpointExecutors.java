@@ -0,0 +1,172 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * The threads a client runs on.
+ *
+ * All changes to the client's control state happen on one serial control thread, in the
+ * order they were submitted.  Blocking database and HTTP requests run on a small bounded I/O
+ * pool and hand their result back to the control thread.  Loops that keep running for minutes
+ * or for the life of the client (waiting for pairing, reading the changes feed, the initial
+ * pull of the control database) each get a thread of their own, so they never hold up the
+ * I/O pool.  The main thread only receives callbacks meant for the app.
+ */
+public class SyncpointExecutors {
+
+    public static final int DEFAULT_IO_THREADS = 3;
+
+    private final ScheduledExecutorService control;
+    private final ThreadPoolExecutor io;
+    private final ThreadPoolExecutor longRunning;
+    private final Executor callbacks;
+    private volatile Thread controlThread;
+
+    /**
+     * @param callbacks runs callbacks for the app, e.g. on the main thread
+     */
+    public SyncpointExecutors(Executor callbacks) {
+        this(callbacks, DEFAULT_IO_THREADS);
+    }
+
+    public SyncpointExecutors(Executor callbacks, int ioThreads) {
+        this.control = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Syncpoint-control") {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                controlThread = super.newThread(r);
+                return controlThread;
+            }
+        });
+        this.io = new ThreadPoolExecutor(ioThreads, ioThreads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("Syncpoint-io"));
+        this.longRunning = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new NamedThreadFactory("Syncpoint-loop"));
+        this.callbacks = callbacks;
+    }
+
+    /**
+     * The serial executor for control state changes.
+     */
+    public ScheduledExecutorService getControlExecutor() {
+        return control;
+    }
+
+    /**
+     * The bounded pool for blocking database and HTTP work.
+     */
+    public Executor getIoExecutor() {
+        return io;
+    }
+
+    /**
+     * Runs each task on a thread of its own, for loops that block for a long time.
+     */
+    public Executor getLongRunningExecutor() {
+        return longRunning;
+    }
+
+    /**
+     * Runs callbacks for the app, on the main thread on Android.
+     */
+    public Executor getCallbackExecutor() {
+        return callbacks;
+    }
+
+    public boolean isControlThread() {
+        return Thread.currentThread() == controlThread;
+    }
+
+    public void runOnControl(final String name, final Runnable task) {
+        control.execute(logFailures(name, task));
+    }
+
+    public ScheduledFuture<?> runOnControl(final String name, final Runnable task, long delayMs) {
+        return control.schedule(logFailures(name, task), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void runOnIo(final String name, final Runnable task) {
+        io.execute(logFailures(name, task));
+    }
+
+    public void runLongRunning(final String name, final Runnable task) {
+        longRunning.execute(logFailures(name, task));
+    }
+
+    /**
+     * Stops every thread.  Tasks still queued on the control thread are dropped, and those
+     * someone may be waiting on are cancelled so the wait ends.
+     */
+    public void shutdown() {
+        longRunning.shutdownNow();
+        io.shutdownNow();
+        for (Runnable dropped : control.shutdownNow()) {
+            if(dropped instanceof Future) {
+                ((Future<?>)dropped).cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Executors keep the exceptions of the tasks they run to themselves, so log them instead
+     * of losing them.
+     */
+    private static Runnable logFailures(final String name, final Runnable task) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    SyncpointLog.e(SyncpointClientImpl.TAG, String.format("%s failed", name), e);
+                }
+            }
+        };
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -17,33 +17,141 @@
 
 package com.couchbase.syncpoint.impl;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.ektorp.ComplexKey;
 import org.ektorp.CouchDbConnector;
+import org.ektorp.CouchDbInstance;
+import org.ektorp.DbAccessException;
+import org.ektorp.DocumentNotFoundException;
 import org.ektorp.ViewQuery;
-import org.ektorp.ViewResult;
-import org.ektorp.ViewResult.Row;
+import org.ektorp.impl.StdObjectMapperFactory;
+
+import com.couchbase.syncpoint.SyncpointMetrics;
+import com.couchbase.syncpoint.model.SyncpointModel;
+import com.couchbase.syncpoint.platform.SyncpointLog;
 
 public class SyncpointModelFactory {
 
-    public static <T> List<T> getModelsOfType(CouchDbConnector database, String type, Class<T> clazz) {
-        List<T> results = new ArrayList<T>();
+    private static final ObjectMapper objectMapper = new StdObjectMapperFactory().createObjectMapper();
+
+    // databases without the syncpoint views, these fall back to _all_docs until the views are installed
+    private static final Map<String, Boolean> viewsUnavailable = new ConcurrentHashMap<String, Boolean>();
+
+    public static <T extends SyncpointModel> List<T> getModelsOfType(CouchDbInstance server, CouchDbConnector database, String type, Class<T> clazz) {
+        return queryModels(server, database, SyncpointViews.BY_TYPE_OWNER_STATE, type, new String[] {}, new String[] {}, clazz);
+    }
+
+    public static <T extends SyncpointModel> List<T> getModelsOfType(CouchDbInstance server, CouchDbConnector database, String type, String ownerId, Class<T> clazz) {
+        return queryModels(server, database, SyncpointViews.BY_TYPE_OWNER_STATE, type, new String[] {"owner_id"}, new String[] {ownerId}, clazz);
+    }
+
+    public static <T extends SyncpointModel> List<T> getModelsOfType(CouchDbInstance server, CouchDbConnector database, String type, String ownerId, String state, Class<T> clazz) {
+        return queryModels(server, database, SyncpointViews.BY_TYPE_OWNER_STATE, type, new String[] {"owner_id", "state"}, new String[] {ownerId, state}, clazz);
+    }
+
+    public static <T extends SyncpointModel> List<T> getModelsOfTypeInChannel(CouchDbInstance server, CouchDbConnector database, String type, String channelId, Class<T> clazz) {
+        return queryModels(server, database, SyncpointViews.BY_TYPE_CHANNEL, type, new String[] {"channel_id"}, new String[] {channelId}, clazz);
+    }
+
+    /**
+     * Queries the key range [type, keyValues...] of the named view.  If the design document or
+     * the view doesn't exist we fall back to scanning _all_docs and matching on the same fields.
+     * Any other error is passed on, it says nothing about whether the view can be used.
+     */
+    static <T extends SyncpointModel> List<T> queryModels(CouchDbInstance server, CouchDbConnector database, String viewName, String type, String[] keyFields, String[] keyValues, Class<T> clazz) {
+        if(!viewsUnavailable.containsKey(database.getDatabaseName())) {
+            Object[] startKey = new Object[keyValues.length + 1];
+            Object[] endKey = new Object[keyValues.length + 2];
+            startKey[0] = endKey[0] = type;
+            for(int i = 0; i < keyValues.length; i++) {
+                startKey[i + 1] = endKey[i + 1] = keyValues[i];
+            }
+            endKey[endKey.length - 1] = ComplexKey.emptyObject();
+
+            ViewQuery query = new ViewQuery()
+                .designDocId(SyncpointViews.DESIGN_DOC_ID)
+                .viewName(viewName)
+                .startKey(ComplexKey.of(startKey))
+                .endKey(ComplexKey.of(endKey))
+                .includeDocs(true);
+            try {
+                return readModels(server, database, query, type, keyFields, keyValues, clazz);
+            } catch (DocumentNotFoundException e) {
+                SyncpointLog.w(SyncpointClientImpl.TAG, String.format("View %s missing in %s, falling back to _all_docs", viewName, database.getDatabaseName()), e);
+                viewsUnavailable.put(database.getDatabaseName(), Boolean.TRUE);
+            }
+        }
         ViewQuery query = new ViewQuery().allDocs().includeDocs(true);
-        ViewResult result = database.queryView(query);
-        for(Row row : result.getRows()) {
-            JsonNode docNode = row.getDocAsNode();
-            JsonNode docTypeNode = docNode.get("type");
-            if(docTypeNode != null) {
-                String docType = docTypeNode.asText();
-                if(docType != null && docType.equals(type)) {
-                    results.add(getModelForDocument(database, row.getId(), clazz));
-                }
+        return readModels(server, database, query, type, keyFields, keyValues, clazz);
+    }
+
+    /**
+     * Called once the views are installed in the database, so queries use them again.
+     */
+    static void viewsInstalled(CouchDbConnector database) {
+        viewsUnavailable.remove(database.getDatabaseName());
+    }
+
+    /**
+     * Streams the query result, deserializing only the docs of the given type whose
+     * fields match the given values.
+     */
+    static <T extends SyncpointModel> List<T> readModels(CouchDbInstance server, CouchDbConnector database, ViewQuery query, String type, String[] keyFields, String[] keyValues, Class<T> clazz) {
+        if(clazz == null) {
+            throw new IllegalStateException(String.format("Class is required for model instantiation"));
+        }
+        String[] fields = new String[keyFields.length + 1];
+        String[] values = new String[keyValues.length + 1];
+        fields[0] = "type";
+        values[0] = type;
+        System.arraycopy(keyFields, 0, fields, 1, keyFields.length);
+        System.arraycopy(keyValues, 0, values, 1, keyValues.length);
+
+        SyncpointMetrics metrics = SyncpointMetrics.getInstance();
+        long startedAt = System.nanoTime();
+        ControlDocumentStreamReader<T> reader = new ControlDocumentStreamReader<T>(objectMapper, server, database, clazz, fields, values);
+        InputStream in = database.queryForStream(query);
+        try {
+            return reader.read(in);
+        } catch (IOException e) {
+            throw new DbAccessException(e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
             }
+            metrics.counter(SyncpointMetrics.MODEL_QUERIES).increment();
+            metrics.counter(SyncpointMetrics.MODEL_QUERY_ROWS_SCANNED).add(reader.getRowsScanned());
+            metrics.counter(SyncpointMetrics.MODEL_QUERY_ROWS_MATCHED).add(reader.getRowsMatched());
+            metrics.histogram(SyncpointMetrics.MODEL_QUERY_US).record((System.nanoTime() - startedAt) / 1000);
         }
+    }
 
-        return results;
+    /**
+     * Binds a model from a document already returned by the database (e.g. with include_docs)
+     * so that no further request is needed.
+     */
+    public static <T extends SyncpointModel> T bindModel(JsonNode docNode, CouchDbInstance server, CouchDbConnector database, Class<T> clazz) {
+        if(clazz == null) {
+            throw new IllegalStateException(String.format("Class is required for model instantiation"));
+        }
+        T model;
+        try {
+            model = objectMapper.readValue(docNode, clazz);
+        } catch (IOException e) {
+            throw new DbAccessException(e);
+        }
+        model.attach(server, database);
+        return model;
     }
 
     public static <T> T getModelForDocument(CouchDbConnector database, String docId, Class<T> clazz) {
@@ -0,0 +1,117 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.impl;
+
+import java.util.Map;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DbAccessException;
+import org.ektorp.changes.ChangesCommand;
+import org.ektorp.support.DesignDocument;
+
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * The design document used to index the control database by type, and to filter its
+ * changes feed down to the documents reconciliation looks at.
+ */
+public class SyncpointViews {
+
+    public static final String DESIGN_DOC_ID = "_design/syncpoint";
+
+    /** Keyed on [type, owner_id, state] */
+    public static final String BY_TYPE_OWNER_STATE = "by_type_owner_state";
+
+    /** Keyed on [type, channel_id] */
+    public static final String BY_TYPE_CHANNEL = "by_type_channel";
+
+    /** Passes the docs reconciliation looks at; takes the session doc id as session_id */
+    public static final String CONTROL_FILTER = "control";
+
+    static final String BY_TYPE_OWNER_STATE_MAP =
+            "function(doc) { if(doc.type) { emit([doc.type, doc.owner_id || null, doc.state || null], null); } }";
+
+    static final String BY_TYPE_CHANNEL_MAP =
+            "function(doc) { if(doc.type && doc.channel_id) { emit([doc.type, doc.channel_id], null); } }";
+
+    static final String CONTROL_FILTER_FUNCTION =
+            "function(doc, req) { return doc._deleted || doc._id == req.query.session_id"
+            + " || doc.type == 'channel' || doc.type == 'subscription' || doc.type == 'installation'; }";
+
+    /**
+     * Creates or upgrades the design document, returns false if it could not be installed.
+     */
+    public static boolean install(CouchDbConnector database) {
+        try {
+            DesignDocument designDoc = database.find(DesignDocument.class, DESIGN_DOC_ID);
+            boolean exists = designDoc != null;
+            if(!exists) {
+                designDoc = new DesignDocument(DESIGN_DOC_ID);
+            }
+            boolean changed = addView(designDoc, BY_TYPE_OWNER_STATE, BY_TYPE_OWNER_STATE_MAP);
+            changed = addView(designDoc, BY_TYPE_CHANNEL, BY_TYPE_CHANNEL_MAP) || changed;
+            changed = addFilter(designDoc, CONTROL_FILTER, CONTROL_FILTER_FUNCTION) || changed;
+            if(!exists) {
+                SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Installing %s in %s", DESIGN_DOC_ID, database.getDatabaseName()));
+                database.create(designDoc);
+            } else if(changed) {
+                SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Upgrading %s in %s", DESIGN_DOC_ID, database.getDatabaseName()));
+                database.update(designDoc);
+            }
+            SyncpointModelFactory.viewsInstalled(database);
+            return true;
+        } catch (DbAccessException e) {
+            SyncpointLog.e(SyncpointClientImpl.TAG, String.format("Unable to install %s", DESIGN_DOC_ID), e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the name to pass as the filter of a changes feed, or null if the database
+     * can't run the filter (TouchDB without a JavaScript engine).
+     */
+    public static String controlFilter(CouchDbConnector database) {
+        String filter = DESIGN_DOC_ID.substring("_design/".length()) + "/" + CONTROL_FILTER;
+        try {
+            database.changes(new ChangesCommand.Builder().filter(filter).param("session_id", "").limit(1).build());
+            return filter;
+        } catch (DbAccessException e) {
+            SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Filter %s is unavailable, reading the unfiltered feed", filter));
+            return null;
+        }
+    }
+
+    private static boolean addFilter(DesignDocument designDoc, String name, String function) {
+        if(function.equals(designDoc.getFilters().get(name))) {
+            return false;
+        }
+        designDoc.addFilter(name, function);
+        return true;
+    }
+
+    private static boolean addView(DesignDocument designDoc, String name, String map) {
+        Map<String, DesignDocument.View> views = designDoc.getViews();
+        DesignDocument.View existing = views.get(name);
+        if(existing != null && map.equals(existing.getMap())) {
+            return false;
+        }
+        designDoc.addView(name, new DesignDocument.View(map));
+        return true;
+    }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.model;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * The part of a session only this device needs, kept in a _local doc so changing it doesn't
+ * make a revision that gets pushed to the server.
+ */
+public class SessionLocalState {
+
+    private OAuthCreds oauthCreds;
+    private PairingCreds pairingCreds;
+    private String pairingType;
+    private String pairingToken;
+    private boolean controlDbSynced = false;
+
+    @JsonProperty("oauth_creds")
+    public OAuthCreds getOauthCreds() {
+        return oauthCreds;
+    }
+
+    @JsonProperty("oauth_creds")
+    public void setOauthCreds(OAuthCreds oauthCreds) {
+        this.oauthCreds = oauthCreds;
+    }
+
+    @JsonProperty("pairing_creds")
+    public PairingCreds getPairingCreds() {
+        return pairingCreds;
+    }
+
+    @JsonProperty("pairing_creds")
+    public void setPairingCreds(PairingCreds pairingCreds) {
+        this.pairingCreds = pairingCreds;
+    }
+
+    @JsonProperty("pairing_type")
+    public String getPairingType() {
+        return pairingType;
+    }
+
+    @JsonProperty("pairing_type")
+    public void setPairingType(String pairingType) {
+        this.pairingType = pairingType;
+    }
+
+    @JsonProperty("pairing_token")
+    public String getPairingToken() {
+        return pairingToken;
+    }
+
+    @JsonProperty("pairing_token")
+    public void setPairingToken(String pairingToken) {
+        this.pairingToken = pairingToken;
+    }
+
+    @JsonProperty("control_db_synced")
+    public boolean isControlDbSynced() {
+        return controlDbSynced;
+    }
+
+    @JsonProperty("control_db_synced")
+    public void setControlDbSynced(boolean controlDbSynced) {
+        this.controlDbSynced = controlDbSynced;
+    }
+
+}
@@ -19,15 +19,13 @@ package com.couchbase.syncpoint.model;
 
 import java.util.List;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.ektorp.CouchDbConnector;
 import org.ektorp.CouchDbInstance;
 
-import android.content.Context;
-import android.util.Log;
-
 import com.couchbase.syncpoint.impl.SyncpointClientImpl;
-import com.couchbase.syncpoint.impl.SyncpointModelFactory;
+import com.couchbase.syncpoint.platform.SyncpointLog;
 
 @SuppressWarnings("serial")
 public class SyncpointChannel extends SyncpointModel {
@@ -72,29 +70,31 @@ public class SyncpointChannel extends SyncpointModel {
         this.cloudDatabase = cloudDatabase;
     }
 
+    @Override
+    protected boolean serverWinsConflict(String field) {
+        // the server creates the cloud database and says where it is
+        return "cloud_database".equals(field) || super.serverWinsConflict(field);
+    }
+
+    @JsonIgnore
     public SyncpointSubscription getSubscription() {
-        // TODO: Make this into a view query
-        List<SyncpointSubscription> subscriptions = (List<SyncpointSubscription>)SyncpointModelFactory.getModelsOfType(database, "subscription", SyncpointSubscription.class);
-        for (SyncpointSubscription sub : subscriptions) {
-            if(sub.getChannelId() == getId()) {
-                sub.attach(server, database);
-                return sub;
-            }
+        List<SyncpointSubscription> subscriptions = getModelsOfTypeInChannel("subscription", getId(), SyncpointSubscription.class);
+        if(subscriptions.isEmpty()) {
+            return null;
         }
-        return null;
+        return subscriptions.get(0);
     }
 
-    CouchDbConnector getLocalDatabase(Context context) {
-        SyncpointInstallation inst = getInstallation(context);
+    CouchDbConnector getLocalDatabase(SyncpointSessionHolder sessionHolder) {
+        SyncpointInstallation inst = getInstallation(sessionHolder);
         if(inst != null) {
-            return inst.getLocalDatabase(context);
+            return inst.getLocalDatabase(sessionHolder);
         } else {
             return null;
         }
     }
 
-    public CouchDbConnector ensureLocalDatabase(Context context) {
-
+    public CouchDbConnector ensureLocalDatabase(SyncpointSessionHolder sessionHolder) {
 
         SyncpointSubscription sub = getSubscription();
         if(sub == null) {
@@ -103,19 +103,17 @@ public class SyncpointChannel extends SyncpointModel {
         if(sub == null) {
             return null;
         }
-        if(getLocalDatabase(context) == null) {
-            sub.makeInstallation(context, null);
+        if(getLocalDatabase(sessionHolder) == null) {
+            sub.makeInstallation(sessionHolder, null);
         }
-        CouchDbConnector localDatabase = getLocalDatabase(context);
+        CouchDbConnector localDatabase = getLocalDatabase(sessionHolder);
         return localDatabase;
     }
 
-    public SyncpointInstallation getInstallation(Context context) {
-        // TODO: Make this into a view query
-        List<SyncpointInstallation> installations = (List<SyncpointInstallation>)SyncpointModelFactory.getModelsOfType(database, "installation", SyncpointInstallation.class);
+    public SyncpointInstallation getInstallation(SyncpointSessionHolder sessionHolder) {
+        List<SyncpointInstallation> installations = getModelsOfTypeInChannel("installation", getId(), SyncpointInstallation.class);
         for (SyncpointInstallation inst : installations) {
-            inst.attach(server, database);
-            if(inst.getChannelId().equals(getId()) && inst.isLocal(context)) {
+            if(inst.isLocal(sessionHolder)) {
                 return inst;
             }
         }
@@ -123,13 +121,13 @@ public class SyncpointChannel extends SyncpointModel {
     }
 
     SyncpointSubscription subscribe() {
-        Log.v(SyncpointClientImpl.TAG, String.format("Subscribing to %s", this));
-        SyncpointSubscription sub = new SyncpointSubscription(server, database);
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Subscribing to %s", this));
+        SyncpointSubscription sub = attachNew(new SyncpointSubscription());
         sub.setType("subscription");
         sub.setState("active");
         sub.setOwnerId(getOwnerId());
         sub.setChannelId(getId());
-        database.create(sub);
+        sub.create();
         return sub;
     }
 }
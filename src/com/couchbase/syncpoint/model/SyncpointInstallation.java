@@ -20,9 +20,9 @@ package com.couchbase.syncpoint.model;
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.ektorp.CouchDbConnector;
 import org.ektorp.CouchDbInstance;
-import org.ektorp.ReplicationCommand;
 
-import android.content.Context;
+import com.couchbase.syncpoint.impl.ConnectorCache;
+import com.couchbase.syncpoint.impl.ReplicationScheduler;
 
 @SuppressWarnings("serial")
 public class SyncpointInstallation extends SyncpointModel {
@@ -90,46 +90,36 @@ public class SyncpointInstallation extends SyncpointModel {
         super(server, database);
     }
 
-    public boolean isLocal(Context context) {
-        SyncpointSession session = SyncpointSession.sessionInDatabase(context, server, database);
-        if(session.getId().equals(getSessionId())) {
+    public boolean isLocal(SyncpointSessionHolder sessionHolder) {
+        String localSessionId = sessionHolder.getSessionId();
+        if(localSessionId != null && localSessionId.equals(getSessionId())) {
             return true;
         }
         return false;
     }
 
-    public CouchDbConnector getLocalDatabase(Context context) {
-        if(!isLocal(context)) {
+    public CouchDbConnector getLocalDatabase(SyncpointSessionHolder sessionHolder) {
+        if(!isLocal(sessionHolder)) {
             return null;
         }
         String name = getLocalDbName();
         if(name != null) {
-            return server.createConnector(name, false);
+            // the database is created here, on first use, rather than when installing
+            return ConnectorCache.forServer(server).open(name);
         }
         return null;
     }
 
     /**
-     * Starts bidirectional sync of an application database with its server counterpart.
+     * Schedules bidirectional sync, which first catches up with a one-shot pull and skips
+     * replications that are already running.
      */
-    public void sync(SyncpointSession session, SyncpointChannel channel) {
-
-        String cloudChannelURL = String.format("%s/%s", session.getSyncpointUrl(), channel.getCloudDatabase());
-
-        ReplicationCommand pull = new ReplicationCommand.Builder()
-        .source(cloudChannelURL)
-        .target(localDbName)
-        .continuous(true)
-        .build();
-
-        ReplicationCommand push = new ReplicationCommand.Builder()
-        .source(localDbName)
-        .target(cloudChannelURL)
-        .continuous(true)
-        .build();
+    public void sync(SyncpointSession session, SyncpointChannel channel, ReplicationScheduler scheduler) {
+        scheduler.scheduleChannelSync(getId(), channel.getName(), getCloudChannelURL(session, channel), localDbName);
+    }
 
-        server.replicate(pull);
-        server.replicate(push);
+    private static String getCloudChannelURL(SyncpointSession session, SyncpointChannel channel) {
+        return String.format("%s/%s", session.getSyncpointUrl(), channel.getCloudDatabase());
     }
 
 }
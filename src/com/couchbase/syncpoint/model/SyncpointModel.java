@@ -17,11 +17,34 @@
 
 package com.couchbase.syncpoint.model;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
 import org.ektorp.CouchDbConnector;
 import org.ektorp.CouchDbInstance;
+import org.ektorp.DbAccessException;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.impl.StdObjectMapperFactory;
 import org.ektorp.support.OpenCouchDbDocument;
 
+import com.couchbase.syncpoint.SyncpointMetrics;
+import com.couchbase.syncpoint.impl.ControlDatabaseBatch;
+import com.couchbase.syncpoint.impl.ControlModelCache;
+import com.couchbase.syncpoint.impl.SyncpointClientImpl;
+import com.couchbase.syncpoint.impl.SyncpointModelFactory;
+import com.couchbase.syncpoint.platform.KeyValueStore;
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
 @SuppressWarnings("serial")
 public class SyncpointModel extends OpenCouchDbDocument {
 
@@ -31,6 +54,19 @@ public class SyncpointModel extends OpenCouchDbDocument {
     @JsonIgnore
     protected CouchDbConnector database;
 
+    @JsonIgnore
+    protected ControlModelCache cache;
+
+    private static final ObjectMapper snapshotMapper = new StdObjectMapperFactory().createObjectMapper();
+
+    public static final int MAX_CONFLICT_RETRIES = 5;
+    private static final long CONFLICT_BACKOFF_MS = 50;
+    private static final long MAX_CONFLICT_BACKOFF_MS = 1000;
+
+    // the doc as it was last read or written, to tell which fields have changed since
+    @JsonIgnore
+    private transient JsonNode snapshot;
+
     private String state;
     private String error;
     private String type;
@@ -88,25 +124,313 @@ public class SyncpointModel extends OpenCouchDbDocument {
         return String.format("%s[%s]", getClass().getName(), getId());
     }
 
+    /**
+     * Tells whether any field differs from the doc as it was last read or written.  A model
+     * that was never read or written is always dirty.
+     */
+    @JsonIgnore
+    public boolean isDirty() {
+        return snapshot == null || !getDirtyFields().isEmpty();
+    }
+
+    /**
+     * Returns the names of the JSON fields that differ from the doc as it was last read or
+     * written, or every field if it was never read or written.
+     */
+    @JsonIgnore
+    public Set<String> getDirtyFields() {
+        return getDirtyFields(snapshotMapper.valueToTree(this));
+    }
+
+    private Set<String> getDirtyFields(JsonNode current) {
+        Set<String> dirty = new LinkedHashSet<String>();
+        for (Iterator<String> it = current.getFieldNames(); it.hasNext();) {
+            String field = it.next();
+            if(snapshot == null || !current.get(field).equals(snapshot.get(field))) {
+                dirty.add(field);
+            }
+        }
+        if(snapshot != null) {
+            for (Iterator<String> it = snapshot.getFieldNames(); it.hasNext();) {
+                String field = it.next();
+                if(!current.has(field)) {
+                    dirty.add(field);
+                }
+            }
+        }
+        dirty.remove("_rev");
+        return dirty;
+    }
+
+    /**
+     * Records the current fields as matching the database.
+     */
+    public void markClean() {
+        snapshot = snapshotMapper.valueToTree(this);
+    }
+
+    /**
+     * Records the given tree of this model, taken before it was written, as matching the
+     * database, saving another encoding of the model.
+     */
+    private void markClean(JsonNode written) {
+        if(written instanceof ObjectNode && getRevision() != null) {
+            ((ObjectNode)written).put("_rev", getRevision());
+        }
+        snapshot = written;
+    }
+
+    /**
+     * Returns a new model of the doc as it was last read or written, attached to the same
+     * database and cache, or null if this model was never read or written.  Changing the new
+     * model leaves this one alone.
+     */
+    public <T extends SyncpointModel> T copyOfSnapshot(Class<T> clazz) {
+        if(snapshot == null) {
+            return null;
+        }
+        T copy;
+        try {
+            copy = snapshotMapper.treeToValue(snapshot, clazz);
+        } catch (IOException e) {
+            throw new DbAccessException(e);
+        }
+        // snapshots are never changed once taken, so the copy can share this one
+        ((SyncpointModel)copy).snapshot = snapshot;
+        copy.attach(server, database, cache);
+        return copy;
+    }
+
+    /**
+     * Forgets what was last read or written, so the next update() writes the model even if
+     * none of its fields changed.
+     */
+    public void markDirty() {
+        snapshot = null;
+    }
+
     public void create() {
         if(database != null) {
             database.create(this);
+            markClean();
+            if(cache != null) {
+                cache.modelSaved(this);
+            }
         } else {
             throw new IllegalStateException("Cannot create a detached model");
         }
     }
 
+    /**
+     * Writes the model if any of its fields changed.  Inside a ControlDatabaseBatch the write
+     * is put off until the batch is committed, so updating a model several times costs a
+     * single write.  The model is encoded once to find its changes, and that encoding becomes
+     * the new snapshot.
+     */
     public void update() {
         if(database != null) {
-            database.update(this);
+            JsonNode current = snapshotMapper.valueToTree(this);
+            if(snapshot != null && getDirtyFields(current).isEmpty()) {
+                SyncpointLog.v(SyncpointClientImpl.TAG, String.format("%s is unchanged, not writing it", this));
+                return;
+            }
+            ControlDatabaseBatch batch = ControlDatabaseBatch.current(database);
+            if(batch != null) {
+                batch.update(this);
+                return;
+            }
+            try {
+                database.update(this);
+                markClean(current);
+            } catch (RuntimeException e) {
+                if(cache != null) {
+                    // our in-memory copy may no longer match the database
+                    cache.documentChanged(getId(), null, false);
+                }
+                throw e;
+            }
+            if(cache != null) {
+                cache.modelSaved(this);
+            }
         } else {
             throw new IllegalStateException("Cannot update a detached model");
         }
     }
 
+    /**
+     * Writes the model like update(), but if someone else (usually the server) changed the doc
+     * in the meantime, the latest revision is read and this model's changes are applied on
+     * top of it, then the write is tried again.
+     *
+     * Only the fields changed by this client are applied.  When both sides changed the same
+     * field, serverWinsConflict() decides which value is kept.  After MAX_CONFLICT_RETRIES
+     * failed attempts the UpdateConflictException is thrown.  The retries are made right
+     * away; see updateResolvingConflicts(ScheduledExecutorService) to space them out.
+     */
+    public void updateResolvingConflicts() {
+        updateResolvingConflicts(null);
+    }
+
+    /**
+     * Like updateResolvingConflicts(), but when the doc keeps changing underneath us the next
+     * attempt is scheduled on the given executor after a backoff delay instead of being made
+     * right away, so the calling thread is never put to sleep.  A write that still fails after
+     * MAX_CONFLICT_RETRIES attempts on the executor is logged.
+     *
+     * @param retryExecutor where to retry, usually the client's control thread; null to retry
+     * right away
+     */
+    public void updateResolvingConflicts(ScheduledExecutorService retryExecutor) {
+        if(database == null) {
+            throw new IllegalStateException("Cannot update a detached model");
+        }
+        if(ControlDatabaseBatch.current(database) != null) {
+            // the batch resolves conflicts when it is committed
+            update();
+            return;
+        }
+        try {
+            // writes nothing, and can't conflict, if nothing changed
+            update();
+        } catch (UpdateConflictException e) {
+            resolveConflictAndUpdate(1, retryExecutor);
+        }
+    }
+
+    /**
+     * Called after a write of this model failed with a conflict: reads the latest revision,
+     * applies this model's changes on top of it and writes it, retrying right away if the
+     * doc keeps changing underneath us.
+     */
+    public void resolveConflictAndUpdate() {
+        resolveConflictAndUpdate(1, null);
+    }
+
+    private void resolveConflictAndUpdate(int firstAttempt, final ScheduledExecutorService retryExecutor) {
+        SyncpointMetrics metrics = SyncpointMetrics.getInstance();
+        for (int attempt = firstAttempt; ; attempt++) {
+            metrics.counter(SyncpointMetrics.MODEL_UPDATE_CONFLICTS).increment();
+            rebaseOnLatest();
+            try {
+                database.update(this);
+                markClean();
+                if(cache != null) {
+                    cache.modelSaved(this);
+                }
+                SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Resolved conflict on %s after %d attempts", this, attempt));
+                return;
+            } catch (UpdateConflictException e) {
+                if(attempt >= MAX_CONFLICT_RETRIES) {
+                    SyncpointLog.e(SyncpointClientImpl.TAG, String.format("Giving up on %s after %d conflicts", this, attempt));
+                    if(cache != null) {
+                        cache.documentChanged(getId(), null, false);
+                    }
+                    throw e;
+                }
+            }
+            metrics.counter(SyncpointMetrics.MODEL_UPDATE_CONFLICT_RETRIES).increment();
+            if(retryExecutor != null) {
+                final int nextAttempt = attempt + 1;
+                retryExecutor.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            resolveConflictAndUpdate(nextAttempt, retryExecutor);
+                        } catch (RuntimeException e) {
+                            SyncpointLog.e(SyncpointClientImpl.TAG, String.format("Unable to write %s", SyncpointModel.this), e);
+                        }
+                    }
+                }, Math.min(CONFLICT_BACKOFF_MS << (attempt - 1), MAX_CONFLICT_BACKOFF_MS), TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Tells whether the server's value of a field is kept when both the server and this client
+     * changed it.  The server owns the state and error of the docs it processes.
+     */
+    protected boolean serverWinsConflict(String field) {
+        return "state".equals(field) || "error".equals(field);
+    }
+
+    private void rebaseOnLatest() {
+        JsonNode mine = snapshotMapper.valueToTree(this);
+        Set<String> dirty = getDirtyFields(mine);
+        JsonNode base = snapshot;
+        ObjectNode latest = (ObjectNode) readLatest();
+        // only top-level fields are replaced, so a shallow copy leaves latest as it was
+        ObjectNode merged = snapshotMapper.createObjectNode();
+        merged.putAll(latest);
+
+        for (String field : dirty) {
+            JsonNode serverValue = latest.get(field);
+            boolean serverChanged = base == null || !sameValue(serverValue, base.get(field));
+            if(serverChanged && serverWinsConflict(field)) {
+                SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Keeping the server's %s of %s", field, this));
+                continue;
+            }
+            if(mine.has(field)) {
+                merged.put(field, mine.get(field));
+            } else {
+                merged.remove(field);
+            }
+        }
+        // fields the merged doc doesn't have must not keep their old values
+        for (Iterator<String> it = mine.getFieldNames(); it.hasNext();) {
+            String field = it.next();
+            if(!merged.has(field)) {
+                merged.putNull(field);
+            }
+        }
+        try {
+            snapshotMapper.readerForUpdating(this).readValue(merged);
+        } catch (IOException e) {
+            throw new DbAccessException(e);
+        }
+        snapshot = latest;
+    }
+
+    private JsonNode readLatest() {
+        InputStream in = database.getAsStream(getId());
+        try {
+            return snapshotMapper.readTree(in);
+        } catch (IOException e) {
+            throw new DbAccessException(e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing left to read anyway
+            }
+        }
+    }
+
+    private static boolean sameValue(JsonNode a, JsonNode b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    protected static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
     public void delete() {
         if(database != null) {
-            database.delete(this);
+            ControlDatabaseBatch batch = ControlDatabaseBatch.current(database);
+            if(batch != null) {
+                batch.delete(this);
+                return;
+            }
+            String deletedRevision = database.delete(this);
+            if(cache != null) {
+                cache.modelDeleted(this, deletedRevision);
+            }
         } else {
             throw new IllegalStateException("Cannot delete a detached model");
         }
@@ -115,17 +439,88 @@ public class SyncpointModel extends OpenCouchDbDocument {
     public void attach(CouchDbInstance server, CouchDbConnector database) {
         this.server = server;
         this.database = database;
+        snapshotIfLoaded();
+    }
+
+    public void attach(CouchDbInstance server, CouchDbConnector database, ControlModelCache cache) {
+        this.server = server;
+        this.database = database;
+        this.cache = cache;
+        snapshotIfLoaded();
+    }
+
+    private void snapshotIfLoaded() {
+        // models are attached right after being read, before anyone can change them
+        if(snapshot == null && getRevision() != null) {
+            markClean();
+        }
+    }
+
+    /**
+     * Returns the holder of the session of the control database this model is attached to,
+     * keeping the session id in the given store.
+     */
+    public SyncpointSessionHolder getSessionHolder(KeyValueStore preferences) {
+        return SyncpointSessionHolder.getInstance(preferences, server, database);
     }
 
+    /**
+     * Attaches a model created by this one to the same database and cache.
+     */
+    protected <T extends SyncpointModel> T attachNew(T model) {
+        model.attach(server, database, cache);
+        return model;
+    }
+
+    protected <T extends SyncpointModel> List<T> getModelsOfType(String type, Class<T> clazz) {
+        if(cache != null && cache.isLoaded()) {
+            return cache.getModelsOfType(type, clazz);
+        }
+        return attachAll(SyncpointModelFactory.getModelsOfType(server, database, type, clazz));
+    }
+
+    protected <T extends SyncpointModel> List<T> getModelsOfType(String type, String ownerId, Class<T> clazz) {
+        if(cache != null && cache.isLoaded()) {
+            return cache.getModelsOfType(type, ownerId, clazz);
+        }
+        return attachAll(SyncpointModelFactory.getModelsOfType(server, database, type, ownerId, clazz));
+    }
+
+    protected <T extends SyncpointModel> List<T> getModelsOfTypeInChannel(String type, String channelId, Class<T> clazz) {
+        if(cache != null && cache.isLoaded()) {
+            return cache.getModelsOfTypeInChannel(type, channelId, clazz);
+        }
+        return attachAll(SyncpointModelFactory.getModelsOfTypeInChannel(server, database, type, channelId, clazz));
+    }
+
+    private <T extends SyncpointModel> List<T> attachAll(List<T> models) {
+        for (T model : models) {
+            model.cache = cache;
+        }
+        return models;
+    }
+
+    /**
+     * Models are equal when they are the same revision of the same doc.  Models that were
+     * never saved have no id and are only equal to themselves.
+     */
     @Override
     public boolean equals(Object o) {
+        if(o == this) {
+            return true;
+        }
         if(o instanceof SyncpointModel) {
             SyncpointModel other = (SyncpointModel)o;
-            if(getId() != null && other.getId() != null && getRevision() != null && other.getRevision() != null) {
-                return getId().equals(other.getId()) && getRevision().equals(other.getRevision());
+            if(getId() != null && getId().equals(other.getId())) {
+                return getRevision() != null ? getRevision().equals(other.getRevision()) : other.getRevision() == null;
             }
         }
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        return getId() != null ? getId().hashCode() : 0;
+    }
+
 }
@@ -28,28 +28,33 @@ import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.ektorp.CouchDbConnector;
 import org.ektorp.CouchDbInstance;
+import org.ektorp.DbAccessException;
 
-import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
-import android.util.Log;
-
+import com.couchbase.syncpoint.impl.LocalDocumentStore;
 import com.couchbase.syncpoint.impl.SyncpointClientImpl;
-import com.couchbase.syncpoint.impl.SyncpointModelFactory;
-import com.couchbase.touchdb.TDMisc;
+import com.couchbase.syncpoint.platform.KeyValueStore;
+import com.couchbase.syncpoint.platform.SyncpointLog;
 
 @SuppressWarnings("serial")
 public class SyncpointSession extends SyncpointModel {
 
+    static final String LOCAL_STATE_ID = "syncpoint-session";
+
     private String ownerId;
     private String appId;
     private String syncpointUrl;
-    private OAuthCreds oauthCreds;
-    private PairingCreds pairingCreds;
-    private String pairingType;
-    private String pairingToken;
     private String controlDatabase;
-    private boolean controlDbSynced = false;
+
+    // device-only state, kept out of the replicated doc
+    @JsonIgnore
+    private SessionLocalState localState = new SessionLocalState();
+
+    @JsonIgnore
+    private LocalDocumentStore localStore;
+
+    // set when the doc still holds device-only state written by an older version
+    @JsonIgnore
+    private boolean hasLegacyLocalState = false;
 
     @JsonProperty("app_id")
     public String getAppId() {
@@ -81,44 +86,44 @@ public class SyncpointSession extends SyncpointModel {
         this.syncpointUrl = syncpointUrl;
     }
 
-    @JsonProperty("oauth_creds")
+    @JsonIgnore
     public OAuthCreds getOauthCreds() {
-        return oauthCreds;
+        return localState.getOauthCreds();
     }
 
-    @JsonProperty("oauth_creds")
+    @JsonIgnore
     public void setOauthCreds(OAuthCreds oauthCreds) {
-        this.oauthCreds = oauthCreds;
+        localState.setOauthCreds(oauthCreds);
     }
 
-    @JsonProperty("pairing_creds")
+    @JsonIgnore
     public PairingCreds getPairingCreds() {
-        return pairingCreds;
+        return localState.getPairingCreds();
     }
 
-    @JsonProperty("pairing_creds")
+    @JsonIgnore
     public void setPairingCreds(PairingCreds pairingCreds) {
-        this.pairingCreds = pairingCreds;
+        localState.setPairingCreds(pairingCreds);
     }
 
-    @JsonProperty("pairing_type")
+    @JsonIgnore
     public String getPairingType() {
-        return pairingType;
+        return localState.getPairingType();
     }
 
-    @JsonProperty("pairing_type")
+    @JsonIgnore
     public void setPairingType(String pairingType) {
-        this.pairingType = pairingType;
+        localState.setPairingType(pairingType);
     }
 
-    @JsonProperty("pairing_token")
+    @JsonIgnore
     public String getPairingToken() {
-        return pairingToken;
+        return localState.getPairingToken();
     }
 
-    @JsonProperty("pairing_token")
+    @JsonIgnore
     public void setPairingToken(String pairingToken) {
-        this.pairingToken = pairingToken;
+        localState.setPairingToken(pairingToken);
     }
 
     @JsonProperty("control_database")
@@ -131,14 +136,52 @@ public class SyncpointSession extends SyncpointModel {
         this.controlDatabase = controlDatabase;
     }
 
-    @JsonProperty("control_db_synced")
+    @Override
+    protected boolean serverWinsConflict(String field) {
+        // set by the server when it pairs the session
+        return "control_database".equals(field) || "owner_id".equals(field) || super.serverWinsConflict(field);
+    }
+
+    @JsonIgnore
     public boolean isControlDbSynced() {
-        return controlDbSynced;
+        return localState.isControlDbSynced();
     }
 
-    @JsonProperty("control_db_synced")
+    @JsonIgnore
     public void setControlDbSynced(boolean controlDbSynced) {
-        this.controlDbSynced = controlDbSynced;
+        localState.setControlDbSynced(controlDbSynced);
+    }
+
+    // Older versions kept the device-only state in the session doc; read it so it can be moved.
+
+    @JsonProperty("oauth_creds")
+    private void readLegacyOauthCreds(OAuthCreds oauthCreds) {
+        localState.setOauthCreds(oauthCreds);
+        hasLegacyLocalState = true;
+    }
+
+    @JsonProperty("pairing_creds")
+    private void readLegacyPairingCreds(PairingCreds pairingCreds) {
+        localState.setPairingCreds(pairingCreds);
+        hasLegacyLocalState = true;
+    }
+
+    @JsonProperty("pairing_type")
+    private void readLegacyPairingType(String pairingType) {
+        localState.setPairingType(pairingType);
+        hasLegacyLocalState = true;
+    }
+
+    @JsonProperty("pairing_token")
+    private void readLegacyPairingToken(String pairingToken) {
+        localState.setPairingToken(pairingToken);
+        hasLegacyLocalState = true;
+    }
+
+    @JsonProperty("control_db_synced")
+    private void readLegacyControlDbSynced(boolean controlDbSynced) {
+        localState.setControlDbSynced(controlDbSynced);
+        hasLegacyLocalState = true;
     }
 
     public SyncpointSession(CouchDbInstance server, CouchDbConnector database) {
@@ -149,21 +192,12 @@ public class SyncpointSession extends SyncpointModel {
 
     }
 
-    public static SyncpointSession sessionInDatabase(Context context, CouchDbInstance server, CouchDbConnector database) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String sessionId = prefs.getString("Syncpoint_SessionDocID", null);
-        if(sessionId == null) {
-            return null;
-        }
-        SyncpointSession result = database.get(SyncpointSession.class, sessionId);
-        if(result != null) {
-            result.attach(server, database);
-        }
-        return result;
+    public static SyncpointSession sessionInDatabase(KeyValueStore preferences, CouchDbInstance server, CouchDbConnector database) {
+        return SyncpointSessionHolder.getInstance(preferences, server, database).getSession();
     }
 
-    public static SyncpointSession makeSessionInDatabase(Context context, CouchDbInstance server, CouchDbConnector database, String appId, URL remoteServerURL) {
-        Log.v(SyncpointClientImpl.TAG, String.format("Creating session for %s in %s", appId, database));
+    public static SyncpointSession makeSessionInDatabase(KeyValueStore preferences, CouchDbInstance server, CouchDbConnector database, String appId, URL remoteServerURL) {
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Creating session for %s in %s", appId, database));
 
         SyncpointSession result = new SyncpointSession(server, database);
         result.setAppId(appId);
@@ -177,28 +211,66 @@ public class SyncpointSession extends SyncpointModel {
         result.setPairingCreds(pairingCreds);
 
         result.create();
+        result.localStore = new LocalDocumentStore(database);
+        result.saveLocalState();
 
         String sessionID = result.getId();
-        Log.v(SyncpointClientImpl.TAG, String.format("...session ID = %s", sessionID));
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putString("Syncpoint_SessionDocID", sessionID);
-        editor.commit();
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("...session ID = %s", sessionID));
+        SyncpointSessionHolder.getInstance(preferences, server, database).setSession(result);
 
         return result;
     }
 
+    /**
+     * Reads the device-only state from its _local doc, moving it there first if the session
+     * doc was written by an older version.
+     */
+    public void attachLocalState(LocalDocumentStore store) {
+        localStore = store;
+        try {
+            SessionLocalState stored = store.get(LOCAL_STATE_ID, SessionLocalState.class);
+            if(stored != null) {
+                localState = stored;
+            } else if(hasLegacyLocalState) {
+                SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Moving device-only state of session %s to a local doc", getId()));
+                store.put(LOCAL_STATE_ID, localState);
+            }
+            if(hasLegacyLocalState) {
+                // writing the doc again leaves the old fields out
+                hasLegacyLocalState = false;
+                markDirty();
+                update();
+            }
+        } catch (DbAccessException e) {
+            SyncpointLog.e(SyncpointClientImpl.TAG, "Unable to read the local session state", e);
+        }
+    }
+
+    /**
+     * Saves the device-only state, which makes no new revision of the session doc.
+     */
+    public void saveLocalState() {
+        if(localStore == null) {
+            throw new IllegalStateException("Session has no local state store");
+        }
+        localStore.put(LOCAL_STATE_ID, localState);
+    }
+
     public boolean clearState() {
+        if("new".equals(getState()) && getError() == null) {
+            // nothing to change, so don't make a revision the server has to hear about
+            return true;
+        }
         setState("new");
         setError(null);
 
-        update();
+        updateResolvingConflicts();
         return true;
     }
 
     public SyncpointChannel makeChannel(String name) {
-        Log.v(SyncpointClientImpl.TAG, String.format("Create channel named '%s'", name));
-        SyncpointChannel channel = new SyncpointChannel(server, database);
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Create channel named '%s'", name));
+        SyncpointChannel channel = attachNew(new SyncpointChannel());
         channel.setType("channel");
 
         if(getOwnerId() != null) {
@@ -216,18 +288,16 @@ public class SyncpointSession extends SyncpointModel {
 
     @JsonIgnore
     public SyncpointChannel getChannel(String name, String owner) {
-        // TODO: Make this into a view query
-        Log.v(SyncpointClientImpl.TAG, String.format("Looking for channel named %s with owner_id %s", name, owner));
-        List<SyncpointChannel> channels = (List<SyncpointChannel>)SyncpointModelFactory.getModelsOfType(database, "channel", SyncpointChannel.class);
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Looking for channel named %s with owner_id %s", name, owner));
+        List<SyncpointChannel> channels = getModelsOfType("channel", owner, SyncpointChannel.class);
         for (SyncpointChannel channel : channels) {
-            Log.v(SyncpointClientImpl.TAG, String.format("Saw channel named %s with owner_id %s and state %s", channel.getName(), channel.getOwnerId(), channel.getState()));
+            SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Saw channel named %s with owner_id %s and state %s", channel.getName(), channel.getOwnerId(), channel.getState()));
 
-            if(!"error".equals(channel.getState()) && name.equals(channel.getName()) && owner.equals(channel.getOwnerId())) {
-                channel.attach(server, database);
+            if(!"error".equals(channel.getState()) && name.equals(channel.getName())) {
                 return channel;
             }
         }
-        Log.v(SyncpointClientImpl.TAG, String.format("channelWithName %s returning null", name));
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("channelWithName %s returning null", name));
         return null;
     }
 
@@ -244,11 +314,11 @@ public class SyncpointSession extends SyncpointModel {
 
     @JsonIgnore
     public PairingUser getPairingUser() {
-        String username = pairingCreds.getUsername();
-        String password = pairingCreds.getPassword();
+        String username = getPairingCreds().getUsername();
+        String password = getPairingCreds().getPassword();
 
         return new PairingUser(String.format("org.couchdb.user:%s", username), username,
-                "user", oauthCreds, "new", getPairingType(), getPairingToken(), getAppId(),
+                "user", getOauthCreds(), "new", getPairingType(), getPairingToken(), getAppId(),
                 new ArrayList<String>(), password);
     }
 
@@ -256,12 +326,12 @@ public class SyncpointSession extends SyncpointModel {
         byte[] randomBytes = new byte[16];
         Random r = new Random();
         r.nextBytes(randomBytes);
-        return TDMisc.convertToHex(randomBytes);
+        return toHex(randomBytes);
     }
 
 
     public boolean isReadyToPair() {
-        if(pairingToken != null) {
+        if(getPairingToken() != null) {
             return true;
         }
         return false;
@@ -269,12 +339,10 @@ public class SyncpointSession extends SyncpointModel {
 
     @JsonIgnore
     public List<SyncpointSubscription> getActiveSubscriptions() {
-        // TODO: Make this into a view query
         // TODO: ensure the subscription.owner_id matches the session.owner_id
         List<SyncpointSubscription> result = new ArrayList<SyncpointSubscription>();
-        List<SyncpointSubscription> subscriptions = (List<SyncpointSubscription>)SyncpointModelFactory.getModelsOfType(database, "subscription", SyncpointSubscription.class);
+        List<SyncpointSubscription> subscriptions = getModelsOfType("subscription", SyncpointSubscription.class);
         for (SyncpointSubscription subscription : subscriptions) {
-            subscription.attach(server, database);
             if(subscription.isActive()) {
                 result.add(subscription);
             }
@@ -288,9 +356,8 @@ public class SyncpointSession extends SyncpointModel {
         //i still have to fetch the subscriptions
 
         Map<String, SyncpointSubscription> subscriptionMap = new HashMap<String,SyncpointSubscription>();
-        List<SyncpointSubscription> subscriptions = (List<SyncpointSubscription>)SyncpointModelFactory.getModelsOfType(database, "subscription", SyncpointSubscription.class);
+        List<SyncpointSubscription> subscriptions = getModelsOfType("subscription", SyncpointSubscription.class);
         for (SyncpointSubscription subscription : subscriptions) {
-            subscription.attach(server, database);
             subscriptionMap.put(subscription.getId(), subscription);
         }
 
@@ -299,21 +366,24 @@ public class SyncpointSession extends SyncpointModel {
         for (SyncpointInstallation installation : installations) {
             SyncpointSubscription subscription = subscriptionMap.get(installation.getSubscriptionId());
             if(subscription == null) {
-                Log.e(SyncpointClientImpl.TAG, String.format("Installation %s references missing subscription %s", installation, subscription));
+                SyncpointLog.e(SyncpointClientImpl.TAG, String.format("Installation %s references missing subscription %s", installation, subscription));
             } else {
                 installedSubscriptions.add(subscription);
             }
         }
-        return subscriptions;
+        return installedSubscriptions;
+    }
+
+    @JsonIgnore
+    public List<SyncpointSubscription> getAllSubscriptions() {
+        return getModelsOfType("subscription", SyncpointSubscription.class);
     }
 
     @JsonIgnore
     public List<SyncpointInstallation> getAllInstallations() {
-        // TODO: Make this into a view query
         List<SyncpointInstallation> result = new ArrayList<SyncpointInstallation>();
-        List<SyncpointInstallation> installations = (List<SyncpointInstallation>)SyncpointModelFactory.getModelsOfType(database, "installation", SyncpointInstallation.class);
+        List<SyncpointInstallation> installations = getModelsOfType("installation", SyncpointInstallation.class);
         for (SyncpointInstallation installation : installations) {
-            installation.attach(server, database);
             if("created".equals(installation.getState()) && getId().equals(installation.getSessionId())) {
                 result.add(installation);
             }
@@ -323,28 +393,34 @@ public class SyncpointSession extends SyncpointModel {
 
     public void didFirstSyncOfControlDB() {
         setControlDbSynced(true);
-        update();
+        saveLocalState();
     }
 
     @JsonIgnore
     public List<SyncpointChannel> getMyChannels() {
-        List<SyncpointChannel> result = new ArrayList<SyncpointChannel>();
-        List<SyncpointChannel> channels = (List<SyncpointChannel>)SyncpointModelFactory.getModelsOfType(database, "channel", SyncpointChannel.class);
-        for (SyncpointChannel channel : channels) {
-            channel.attach(server, database);
-            if(ownerId.equals(channel.getOwnerId())) {
-                result.add(channel);
-            }
-        }
-        return result;
+        return getModelsOfType("channel", ownerId, SyncpointChannel.class);
+    }
+
+    /**
+     * The channels made before this session was paired, which still belong to the
+     * "unpaired" owner.  Unlike {@link #getUnpairedChannels()} this leaves out channels of the
+     * paired owner that are not in the "paired" state yet.
+     */
+    @JsonIgnore
+    public List<SyncpointChannel> getChannelsFromBeforePairing() {
+        return getModelsOfType("channel", "unpaired", SyncpointChannel.class);
+    }
+
+    @JsonIgnore
+    public List<SyncpointChannel> getAllChannels() {
+        return getModelsOfType("channel", SyncpointChannel.class);
     }
 
     @JsonIgnore
     public List<SyncpointChannel> getUnpairedChannels() {
         List<SyncpointChannel> result = new ArrayList<SyncpointChannel>();
-        List<SyncpointChannel> channels = (List<SyncpointChannel>)SyncpointModelFactory.getModelsOfType(database, "channel", SyncpointChannel.class);
+        List<SyncpointChannel> channels = getModelsOfType("channel", SyncpointChannel.class);
         for (SyncpointChannel channel : channels) {
-            channel.attach(server, database);
             if(!channel.isPaired()) {
                 result.add(channel);
             }
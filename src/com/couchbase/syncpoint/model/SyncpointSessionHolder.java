@@ -0,0 +1,182 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.CouchDbInstance;
+import org.ektorp.DocumentNotFoundException;
+
+import com.couchbase.syncpoint.impl.ControlModelCache;
+import com.couchbase.syncpoint.impl.LocalDocumentStore;
+import com.couchbase.syncpoint.platform.KeyValueStore;
+
+/**
+ * Holds the session of a control database for the life of the process.
+ *
+ * The session doc id is read from the preferences once, and the doc itself is fetched
+ * once; after that, asking whether an installation belongs to this device is a string
+ * comparison.  The holder is told about changes to the control database and only fetches the
+ * session again once a revision it has not seen shows up.
+ */
+public class SyncpointSessionHolder {
+
+    static final String SESSION_ID_PREFERENCE = "Syncpoint_SessionDocID";
+
+    // a few per server at most, one for each control database and preferences store
+    private static final Map<CouchDbInstance, List<SyncpointSessionHolder>> holders = new WeakHashMap<CouchDbInstance, List<SyncpointSessionHolder>>();
+
+    private final KeyValueStore preferences;
+    private final CouchDbInstance server;
+    private final CouchDbConnector database;
+
+    private boolean sessionIdLoaded = false;
+    private String sessionId;
+    private String latestRevision;
+    private SyncpointSession session;
+    private ControlModelCache cache;
+    private final LocalDocumentStore localStore;
+
+    /**
+     * Returns the holder for the given control database of the given server, making it on
+     * first use.  The session id is kept in the given store.  Clients on other servers or
+     * with other stores get holders of their own, even for a database of the same name.
+     */
+    public static SyncpointSessionHolder getInstance(KeyValueStore preferences, CouchDbInstance server, CouchDbConnector database) {
+        synchronized (holders) {
+            List<SyncpointSessionHolder> serverHolders = holders.get(server);
+            if(serverHolders == null) {
+                serverHolders = new ArrayList<SyncpointSessionHolder>();
+                holders.put(server, serverHolders);
+            }
+            for (SyncpointSessionHolder holder : serverHolders) {
+                if(holder.preferences.equals(preferences) && holder.database.getDatabaseName().equals(database.getDatabaseName())) {
+                    return holder;
+                }
+            }
+            SyncpointSessionHolder holder = new SyncpointSessionHolder(preferences, server, database);
+            serverHolders.add(holder);
+            return holder;
+        }
+    }
+
+    private SyncpointSessionHolder(KeyValueStore preferences, CouchDbInstance server, CouchDbConnector database) {
+        this.preferences = preferences;
+        this.server = server;
+        this.database = database;
+        this.localStore = new LocalDocumentStore(database);
+    }
+
+    /**
+     * Attaches sessions fetched from now on to the given model cache.
+     */
+    public synchronized void setModelCache(ControlModelCache cache) {
+        this.cache = cache;
+        if(session != null) {
+            session.attach(server, database, cache);
+        }
+    }
+
+    /**
+     * Returns the id of the session doc, or null if there is no session yet.
+     */
+    public synchronized String getSessionId() {
+        if(!sessionIdLoaded) {
+            sessionId = preferences.getString(SESSION_ID_PREFERENCE, null);
+            sessionIdLoaded = true;
+        }
+        return sessionId;
+    }
+
+    /**
+     * Returns the session, fetching it only if it has not been fetched yet or has changed
+     * since, or null if there is no session yet.
+     */
+    public synchronized SyncpointSession getSession() {
+        String id = getSessionId();
+        if(id == null) {
+            return null;
+        }
+        if(session == null || isStale()) {
+            try {
+                session = database.get(SyncpointSession.class, id);
+            } catch (DocumentNotFoundException e) {
+                return null;
+            }
+            session.attach(server, database, cache);
+            session.attachLocalState(localStore);
+            latestRevision = session.getRevision();
+        }
+        return session;
+    }
+
+    /**
+     * Remembers a session that was just made in the control database.
+     */
+    public synchronized void setSession(SyncpointSession session) {
+        this.session = session;
+        session.attach(server, database, cache);
+        session.attachLocalState(localStore);
+        this.sessionId = session.getId();
+        this.sessionIdLoaded = true;
+        this.latestRevision = session.getRevision();
+        preferences.putString(SESSION_ID_PREFERENCE, sessionId);
+    }
+
+    public boolean isSessionDocument(String docId) {
+        return docId != null && docId.equals(getSessionId());
+    }
+
+    /**
+     * Notes a change to the control database.
+     *
+     * @return true if the session doc changed to a revision the held session doesn't have
+     */
+    public synchronized boolean documentChanged(String docId, String revision) {
+        if(!isSessionDocument(docId)) {
+            return false;
+        }
+        latestRevision = revision;
+        return isStale();
+    }
+
+    private boolean isStale() {
+        // our own updates set the new revision on the held session before the feed reports it,
+        // and the feed may still report an older revision after that
+        if(latestRevision == null || session == null || session.getRevision() == null) {
+            return false;
+        }
+        int latest = generation(latestRevision);
+        int held = generation(session.getRevision());
+        return latest > held || (latest == held && !latestRevision.equals(session.getRevision()));
+    }
+
+    private static int generation(String revision) {
+        int dash = revision.indexOf('-');
+        try {
+            return Integer.parseInt(dash > 0 ? revision.substring(0, dash) : revision);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
@@ -23,11 +23,8 @@ import org.codehaus.jackson.annotate.JsonProperty;
 import org.ektorp.CouchDbConnector;
 import org.ektorp.CouchDbInstance;
 
-import android.content.Context;
-import android.util.Log;
-
 import com.couchbase.syncpoint.impl.SyncpointClientImpl;
-import com.couchbase.touchdb.TDMisc;
+import com.couchbase.syncpoint.platform.SyncpointLog;
 
 @SuppressWarnings("serial")
 public class SyncpointSubscription extends SyncpointModel {
@@ -63,21 +60,21 @@ public class SyncpointSubscription extends SyncpointModel {
         super(server, database);
     }
 
-    public SyncpointInstallation makeInstallation(Context context, CouchDbConnector localDatabase) {
+    public SyncpointInstallation makeInstallation(SyncpointSessionHolder sessionHolder, CouchDbConnector localDatabase) {
         String name = null;
         if(localDatabase != null) {
             name = localDatabase.getDatabaseName();
         } else {
+            // not created until the installation's local database is first used
             name = String.format("channel-%s", randomString());
-            localDatabase = server.createConnector(name, true);
         }
 
-        Log.v(SyncpointClientImpl.TAG, String.format("Installing %s to %s", this, localDatabase.path()));
+        SyncpointLog.v(SyncpointClientImpl.TAG, String.format("Installing %s to %s", this, name));
 
-        SyncpointInstallation inst = new SyncpointInstallation(server, database);
+        SyncpointInstallation inst = attachNew(new SyncpointInstallation());
         inst.setType("installation");
         inst.setState("created");
-        inst.setSessionId((SyncpointSession.sessionInDatabase(context, server, database).getId()));
+        inst.setSessionId(sessionHolder.getSessionId());
         inst.setOwnerId(getOwnerId());
         inst.setChannelId(getChannelId());
         inst.setSubscriptionId(getId());
@@ -90,7 +87,7 @@ public class SyncpointSubscription extends SyncpointModel {
         byte[] randomBytes = new byte[16];
         Random r = new Random();
         r.nextBytes(randomBytes);
-        return TDMisc.convertToHex(randomBytes);
+        return toHex(randomBytes);
     }
 
 }
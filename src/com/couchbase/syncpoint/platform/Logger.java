@@ -0,0 +1,37 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.platform;
+
+/**
+ * Where the client's log messages go.  The levels are those of android.util.Log.
+ */
+public interface Logger {
+
+    void v(String tag, String message);
+
+    void v(String tag, String message, Throwable error);
+
+    void w(String tag, String message);
+
+    void w(String tag, String message, Throwable error);
+
+    void e(String tag, String message);
+
+    void e(String tag, String message, Throwable error);
+
+}
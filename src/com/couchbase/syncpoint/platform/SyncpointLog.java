@@ -0,0 +1,63 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.platform;
+
+import com.couchbase.syncpoint.platform.jvm.JvmLogger;
+
+/**
+ * Logs through the Logger of the platform the process runs on.  Log calls are made from
+ * code that has no platform at hand (models, static helpers), so the logger is process-wide.
+ * It logs to java.util.logging until a platform sets its own, as AndroidPlatform does.
+ */
+public class SyncpointLog {
+
+    private static volatile Logger logger = new JvmLogger();
+
+    public static Logger getLogger() {
+        return logger;
+    }
+
+    public static void setLogger(Logger logger) {
+        SyncpointLog.logger = logger;
+    }
+
+    public static void v(String tag, String message) {
+        logger.v(tag, message);
+    }
+
+    public static void v(String tag, String message, Throwable error) {
+        logger.v(tag, message, error);
+    }
+
+    public static void w(String tag, String message) {
+        logger.w(tag, message);
+    }
+
+    public static void w(String tag, String message, Throwable error) {
+        logger.w(tag, message, error);
+    }
+
+    public static void e(String tag, String message) {
+        logger.e(tag, message);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        logger.e(tag, message, error);
+    }
+
+}
@@ -0,0 +1,73 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.platform.android;
+
+import android.content.Context;
+
+import com.couchbase.syncpoint.platform.Clock;
+import com.couchbase.syncpoint.platform.DatabaseServerFactory;
+import com.couchbase.syncpoint.platform.KeyValueStore;
+import com.couchbase.syncpoint.platform.Logger;
+import com.couchbase.syncpoint.platform.Platform;
+import com.couchbase.syncpoint.platform.Scheduler;
+import com.couchbase.syncpoint.platform.SyncpointLog;
+
+/**
+ * The app's default shared preferences, logcat, the main thread, and TouchDB in the app's
+ * files directory.
+ */
+public class AndroidPlatform implements Platform {
+
+    private final KeyValueStore preferences;
+    private final Logger logger = new AndroidLogger();
+    private final Scheduler scheduler = new MainThreadScheduler();
+    private final DatabaseServerFactory databaseServerFactory;
+
+    public AndroidPlatform(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        this.preferences = SharedPreferencesStore.getDefault(applicationContext);
+        this.databaseServerFactory = new TouchDBServerFactory(applicationContext.getFilesDir().getAbsolutePath());
+        SyncpointLog.setLogger(logger);
+    }
+
+    @Override
+    public KeyValueStore getPreferences() {
+        return preferences;
+    }
+
+    @Override
+    public Logger getLogger() {
+        return logger;
+    }
+
+    @Override
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public Clock getClock() {
+        return Clock.SYSTEM;
+    }
+
+    @Override
+    public DatabaseServerFactory getDatabaseServerFactory() {
+        return databaseServerFactory;
+    }
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.couchbase.syncpoint.platform.android;
+
+import java.net.URL;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.CouchDbInstance;
+
+import android.content.Context;
+
+import com.couchbase.syncpoint.SyncpointClient;
+import com.couchbase.syncpoint.impl.SyncpointClientImpl;
+import com.couchbase.syncpoint.model.SyncpointChannel;
+import com.couchbase.syncpoint.model.SyncpointInstallation;
+import com.couchbase.syncpoint.model.SyncpointModel;
+import com.couchbase.syncpoint.model.SyncpointSession;
+import com.couchbase.syncpoint.model.SyncpointSessionHolder;
+import com.couchbase.syncpoint.model.SyncpointSubscription;
+
+/**
+ * What an Android app uses to get at Syncpoint with just a Context.  The client and the
+ * models only know the Platform interfaces; these open them on an AndroidPlatform and keep
+ * the session id in the app's default shared preferences.
+ */
+public class AndroidSyncpoint {
+
+    private AndroidSyncpoint() {
+
+    }
+
+    /**
+     * Returns a client straight away and opens TouchDB and restores the session in the
+     * background.  Calls made before the client is ready are queued and run once it is.
+     *
+     * @param listener told on the main thread when the client is ready, may be null
+     */
+    public static SyncpointClientImpl open(Context context, URL remoteServer, String syncpointAppId, SyncpointClient.ReadyListener listener) {
+        return SyncpointClientImpl.open(new AndroidPlatform(context), remoteServer, syncpointAppId, listener);
+    }
+
+    /**
+     * Like open(Context, URL, String, ReadyListener), with an already open local server.
+     */
+    public static SyncpointClientImpl open(Context context, CouchDbInstance localServer, URL remoteServer, String syncpointAppId, SyncpointClient.ReadyListener listener) {
+        return SyncpointClientImpl.open(new AndroidPlatform(context), localServer, remoteServer, syncpointAppId, listener);
+    }
+
+    public static SyncpointSessionHolder getSessionHolder(Context context, CouchDbInstance server, CouchDbConnector database) {
+        return SyncpointSessionHolder.getInstance(SharedPreferencesStore.getDefault(context), server, database);
+    }
+
+    public static SyncpointSession sessionInDatabase(Context context, CouchDbInstance server, CouchDbConnector database) {
+        return SyncpointSession.sessionInDatabase(SharedPreferencesStore.getDefault(context), server, database);
+    }
+
+    public static SyncpointSession makeSessionInDatabase(Context context, CouchDbInstance server, CouchDbConnector database, String appId, URL remoteServerURL) {
+        return SyncpointSession.makeSessionInDatabase(SharedPreferencesStore.getDefault(context), server, database, appId, remoteServerURL);
+    }
+
+    public static CouchDbConnector ensureLocalDatabase(Context context, SyncpointChannel channel) {
+        return channel.ensureLocalDatabase(sessionHolderOf(context, channel));
+    }
+
+    public static SyncpointInstallation getInstallation(Context context, SyncpointChannel channel) {
+        return channel.getInstallation(sessionHolderOf(context, channel));
+    }
+
+    public static boolean isLocal(Context context, SyncpointInstallation installation) {
+        return installation.isLocal(sessionHolderOf(context, installation));
+    }
+
+    public static CouchDbConnector getLocalDatabase(Context context, SyncpointInstallation installation) {
+        return installation.getLocalDatabase(sessionHolderOf(context, installation));
+    }
+
+    public static SyncpointInstallation makeInstallation(Context context, SyncpointSubscription subscription, CouchDbConnector localDatabase) {
+        return subscription.makeInstallation(sessionHolderOf(context, subscription), localDatabase);
+    }
+
+    private static SyncpointSessionHolder sessionHolderOf(Context context, SyncpointModel model) {
+        return model.getSessionHolder(SharedPreferencesStore.getDefault(context));
+    }
+
+}
@@ -0,0 +1,74 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.platform.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.couchbase.syncpoint.platform.KeyValueStore;
+
+public class SharedPreferencesStore implements KeyValueStore {
+
+    private final SharedPreferences preferences;
+
+    public SharedPreferencesStore(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    /**
+     * Returns a store backed by the app's default shared preferences.
+     */
+    public static SharedPreferencesStore getDefault(Context context) {
+        return new SharedPreferencesStore(PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext()));
+    }
+
+    /**
+     * Stores are equal when they write to the same preferences, so a store made again from
+     * the same Context finds what was kept through the first one.
+     */
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SharedPreferencesStore && preferences.equals(((SharedPreferencesStore)o).preferences);
+    }
+
+    @Override
+    public int hashCode() {
+        return preferences.hashCode();
+    }
+
+    @Override
+    public String getString(String key, String defaultValue) {
+        return preferences.getString(key, defaultValue);
+    }
+
+    @Override
+    public void putString(String key, String value) {
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putString(key, value);
+        editor.commit();
+    }
+
+    @Override
+    public void remove(String key) {
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.remove(key);
+        editor.commit();
+    }
+
+}
@@ -0,0 +1,57 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.platform.android;
+
+import java.io.IOException;
+
+import org.ektorp.CouchDbInstance;
+import org.ektorp.http.HttpClient;
+import org.ektorp.impl.StdCouchDbInstance;
+
+import com.couchbase.syncpoint.platform.DatabaseServerFactory;
+import com.couchbase.touchdb.TDServer;
+import com.couchbase.touchdb.ektorp.TouchDBHttpClient;
+import com.couchbase.touchdb.router.TDURLStreamHandlerFactory;
+
+/**
+ * Opens an embedded TouchDB server keeping its databases in the given directory.
+ */
+public class TouchDBServerFactory implements DatabaseServerFactory {
+
+    private final String filesDir;
+
+    public TouchDBServerFactory(String filesDir) {
+        this.filesDir = filesDir;
+    }
+
+    @Override
+    public CouchDbInstance createLocalServer() {
+        TDURLStreamHandlerFactory.registerSelfIgnoreError();
+        TDServer server = null;
+        try {
+            server = new TDServer(filesDir);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        HttpClient httpClient = new TouchDBHttpClient(server);
+
+        CouchDbInstance newLocalServer = new StdCouchDbInstance(httpClient);
+        return newLocalServer;
+    }
+
+}
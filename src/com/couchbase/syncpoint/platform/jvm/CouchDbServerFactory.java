@@ -0,0 +1,44 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.platform.jvm;
+
+import java.net.URL;
+
+import org.ektorp.CouchDbInstance;
+import org.ektorp.http.StdHttpClient;
+import org.ektorp.impl.StdCouchDbInstance;
+
+import com.couchbase.syncpoint.platform.DatabaseServerFactory;
+
+/**
+ * Uses a CouchDB-compatible server reachable over HTTP as the local server.
+ */
+public class CouchDbServerFactory implements DatabaseServerFactory {
+
+    private final URL url;
+
+    public CouchDbServerFactory(URL url) {
+        this.url = url;
+    }
+
+    @Override
+    public CouchDbInstance createLocalServer() {
+        return new StdCouchDbInstance(new StdHttpClient.Builder().url(url).build());
+    }
+
+}
@@ -0,0 +1,59 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.platform.jvm;
+
+import java.util.logging.Level;
+
+import com.couchbase.syncpoint.platform.Logger;
+
+/**
+ * Logs through java.util.logging, with one logger per tag.
+ */
+public class JvmLogger implements Logger {
+
+    @Override
+    public void v(String tag, String message) {
+        java.util.logging.Logger.getLogger(tag).log(Level.FINE, message);
+    }
+
+    @Override
+    public void v(String tag, String message, Throwable error) {
+        java.util.logging.Logger.getLogger(tag).log(Level.FINE, message, error);
+    }
+
+    @Override
+    public void w(String tag, String message) {
+        java.util.logging.Logger.getLogger(tag).log(Level.WARNING, message);
+    }
+
+    @Override
+    public void w(String tag, String message, Throwable error) {
+        java.util.logging.Logger.getLogger(tag).log(Level.WARNING, message, error);
+    }
+
+    @Override
+    public void e(String tag, String message) {
+        java.util.logging.Logger.getLogger(tag).log(Level.SEVERE, message);
+    }
+
+    @Override
+    public void e(String tag, String message, Throwable error) {
+        java.util.logging.Logger.getLogger(tag).log(Level.SEVERE, message, error);
+    }
+
+}
@@ -0,0 +1,82 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.platform.jvm;
+
+import java.io.File;
+import java.net.URL;
+
+import com.couchbase.syncpoint.platform.Clock;
+import com.couchbase.syncpoint.platform.DatabaseServerFactory;
+import com.couchbase.syncpoint.platform.KeyValueStore;
+import com.couchbase.syncpoint.platform.Logger;
+import com.couchbase.syncpoint.platform.Platform;
+import com.couchbase.syncpoint.platform.Scheduler;
+
+/**
+ * Runs the client headless: settings in a properties file, java.util.logging, a callback
+ * thread instead of the main thread, and a CouchDB-compatible server at the given URL in
+ * place of TouchDB.
+ */
+public class JvmPlatform implements Platform {
+
+    private final KeyValueStore preferences;
+    private final Logger logger = new JvmLogger();
+    private final Scheduler scheduler = new ExecutorScheduler();
+    private final Clock clock;
+    private final DatabaseServerFactory databaseServerFactory;
+
+    /**
+     * @param preferencesFile where settings are kept, or null to keep them in memory
+     * @param localServerURL the server standing in for TouchDB
+     */
+    public JvmPlatform(File preferencesFile, URL localServerURL) {
+        this(new PropertiesFileStore(preferencesFile), new CouchDbServerFactory(localServerURL), Clock.SYSTEM);
+    }
+
+    public JvmPlatform(KeyValueStore preferences, DatabaseServerFactory databaseServerFactory, Clock clock) {
+        this.preferences = preferences;
+        this.databaseServerFactory = databaseServerFactory;
+        this.clock = clock;
+    }
+
+    @Override
+    public KeyValueStore getPreferences() {
+        return preferences;
+    }
+
+    @Override
+    public Logger getLogger() {
+        return logger;
+    }
+
+    @Override
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public Clock getClock() {
+        return clock;
+    }
+
+    @Override
+    public DatabaseServerFactory getDatabaseServerFactory() {
+        return databaseServerFactory;
+    }
+
+}
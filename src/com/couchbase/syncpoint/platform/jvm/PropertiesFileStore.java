@@ -0,0 +1,88 @@
+/**
+ * Original iOS version by  Jens Alfke & Chris Anderson
+ * Ported to Android by Marty Schoch
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.syncpoint.platform.jvm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import com.couchbase.syncpoint.platform.KeyValueStore;
+
+/**
+ * Keeps the settings in a properties file, written again on every change.  If the file is
+ * null they are only kept in memory.
+ */
+public class PropertiesFileStore implements KeyValueStore {
+
+    private final File file;
+    private final Properties properties = new Properties();
+
+    public PropertiesFileStore(File file) {
+        this.file = file;
+        if(file != null && file.exists()) {
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(String.format("Unable to read %s", file), e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String getString(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
+    @Override
+    public synchronized void putString(String key, String value) {
+        properties.setProperty(key, value);
+        save();
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        properties.remove(key);
+        save();
+    }
+
+    private void save() {
+        if(file == null) {
+            return;
+        }
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                properties.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Unable to write %s", file), e);
+        }
+    }
+
+}